@@ -0,0 +1,203 @@
+package cs455.scaling.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Predicate;
+
+/**
+ * A small microbenchmark runner in the style of JMH, for a tree that
+ * builds with plain javac. Each benchmark is first calibrated so one call
+ * takes at least a few milliseconds and grows in proportion to the work
+ * it is given, then run for a number of timed
+ * warmup iterations that are thrown away, then for the measured
+ * iterations. Every call's result goes to {@link #sink} so the JIT cannot
+ * remove the work being timed. Like the JMH gc profiler, the bytes the
+ * benchmarking thread allocated during the measured iterations are
+ * reported per operation, where the JVM can count them.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class Harness {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Nanoseconds one call to an {@link Op} should take at least.
+	 */
+	final private static long MIN_CALL = 5000000;
+
+	/**
+	 * Consumes results, written by every benchmark call.
+	 */
+	public static volatile long sink;
+
+	/**
+	 * Counts bytes allocated per thread, null if the JVM cannot.
+	 */
+	final private static com.sun.management.ThreadMXBean THREADS = threads();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private int warmups;
+
+	final private int iterations;
+
+	/**
+	 * How long each iteration runs, in nanoseconds.
+	 */
+	final private long iterationNanos;
+
+	/**
+	 * Operations run by the last iteration.
+	 */
+	private long lastOps;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param warmups
+	 *            iterations run and discarded
+	 * @param iterations
+	 *            iterations measured
+	 * @param iterationMillis
+	 *            how long each iteration runs
+	 */
+	public Harness(int warmups, int iterations, long iterationMillis) {
+		this.warmups = warmups;
+		this.iterations = iterations;
+		this.iterationNanos = iterationMillis * 1000000;
+		this.lastOps = 0;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Run a benchmark and print one line with the mean time per operation,
+	 * its standard deviation over the iterations and the matching
+	 * throughput.
+	 *
+	 * @return mean nanoseconds per operation
+	 */
+	public double measure(String name, Op op) throws Exception {
+		// double the batch until a call is long enough and twice the
+		// batch takes about twice as long, so a fixed cost per call such
+		// as starting threads no longer shows in the result
+		int batch = 1;
+		long last = this.call(op, batch);
+		while (batch < (1 << 28)) {
+			long next = this.call(op, batch << 1);
+			batch <<= 1;
+			if (next >= MIN_CALL && next > 1.8 * last)
+				break;
+			last = next;
+		}
+
+		for (int i = 0; i < this.warmups; i++)
+			this.iteration(op, batch);
+
+		double sum = 0;
+		double squares = 0;
+		long ops = 0;
+		long allocated = allocated();
+		for (int i = 0; i < this.iterations; i++) {
+			double nanos = this.iteration(op, batch);
+			sum += nanos;
+			squares += nanos * nanos;
+			ops += this.lastOps;
+		}
+		allocated = allocated() - allocated;
+		double mean = sum / this.iterations;
+		double deviation = Math.sqrt(Math.max(0, squares / this.iterations - mean * mean));
+		System.out.printf("%-36s %12.1f +- %9.1f ns/op %14.0f ops/s %s%n", name, mean, deviation, 1e9 / mean,
+				THREADS == null ? "" : String.format("%10.1f B/op", allocated / (double) ops));
+		return mean;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return bytes the calling thread has allocated so far, 0 if the JVM
+	 *         cannot tell
+	 */
+	public static long allocated() {
+		return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return bytes allocated so far by the live threads that match, 0 if
+	 *         the JVM cannot tell
+	 */
+	public static long allocated(Predicate<Thread> which) {
+		if (THREADS == null)
+			return 0;
+		long bytes = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (which.test(thread))
+				bytes += Math.max(0, THREADS.getThreadAllocatedBytes(thread.getId()));
+		return bytes;
+	}
+
+	/**
+	 * @return true if allocation can be counted on this JVM
+	 */
+	public static boolean countsAllocation() {
+		return THREADS != null;
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	private static com.sun.management.ThreadMXBean threads() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean == false)
+			return null;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (threads.isThreadAllocatedMemorySupported() == false)
+			return null;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+	/**
+	 * Call the op in batches until the iteration time is used up.
+	 *
+	 * @return nanoseconds per operation
+	 */
+	private double iteration(Op op, int batch) throws Exception {
+		long ops = 0;
+		long begin = System.nanoTime();
+		long elapsed;
+		do {
+			sink += op.run(batch);
+			ops += batch;
+			elapsed = System.nanoTime() - begin;
+		} while (elapsed < this.iterationNanos);
+		this.lastOps = ops;
+		return elapsed / (double) ops;
+	}
+
+	private long call(Op op, int batch) throws Exception {
+		long begin = System.nanoTime();
+		sink += op.run(batch);
+		return System.nanoTime() - begin;
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * A benchmarked operation.
+	 */
+	public interface Op {
+
+		/**
+		 * Do the operation a number of times.
+		 *
+		 * @param ops
+		 *            how many times
+		 * @return anything computed, consumed so it is not optimised away
+		 */
+		long run(int ops) throws Exception;
+
+	}
+
+}
@@ -0,0 +1,275 @@
+package cs455.scaling.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+import cs455.scaling.msg.DigestCache;
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Frame;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.server.NioServer;
+import cs455.scaling.server.ServerConfig;
+import cs455.scaling.server.TaskManager;
+import cs455.scaling.task.HashTask;
+import cs455.scaling.task.Task;
+import cs455.scaling.util.*;
+
+/**
+ * Microbenchmarks of the server's hot path, run with {@link Harness}:
+ * hashing a message with each digest engine and through the digest
+ * cache, the task queues under 1, 4 and 16 producers, the hand off of a
+ * task to a pooled {@link cs455.scaling.util.Processor} and hashing a
+ * read's frames in place, one after another and across a ForkJoinPool.
+ * The loopback benchmark starts an {@link NioServer} on an ephemeral
+ * port and drives it with in process closed loop clients, so a change
+ * can be measured end to end on one machine. The alloc benchmark does
+ * the same and reports the bytes the server's threads allocated per
+ * message.
+ *
+ * Usage: HotPathBenchmark [hash|queue|pool|frame|loopback|alloc|all] [seconds]
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class HotPathBenchmark {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static int WARMUP = 3;
+
+	final private static int ITERATIONS = 5;
+
+	final private static int[] PRODUCERS = { 1, 4, 16 };
+
+	final private static int CONSUMERS = 4;
+
+	final private static int CAPACITY = 10000;
+
+	final private static int POOL_SIZE = 4;
+
+	/**
+	 * Frames in one read, the server's default -read-batch.
+	 */
+	final private static int READ_BATCH = 4;
+
+	final private static int[] LOOPBACK_CLIENTS = { 16, 256 };
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception {
+		String which = args.length > 0 ? args[0] : "all";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		Harness harness = new Harness(WARMUP, ITERATIONS, seconds * 1000L);
+		boolean all = which.equals("all");
+
+		if (all || which.equals("hash"))
+			hash(harness);
+		if (all || which.equals("queue"))
+			queue(harness);
+		if (all || which.equals("pool"))
+			pool(harness);
+		if (all || which.equals("frame"))
+			frame(harness);
+		if (all || which.equals("loopback"))
+			loopback(Math.max(5, seconds * 5));
+		if (all || which.equals("alloc"))
+			alloc(Math.max(5, seconds * 5));
+	}
+
+	/**
+	 * SHA-1 of one 8 KB message, as the client does it and as the server
+	 * does it, then the same message through every engine, and SHA-1
+	 * answered from the digest cache or missing it.
+	 */
+	private static void hash(Harness harness) throws Exception {
+		final byte[] message = Message.makeMessage().array();
+		final ByteBuffer frame = ByteBuffer.allocateDirect(Message.size);
+		frame.put(message).flip();
+		final byte[] out = new byte[Hash.getMaxHexSize()];
+
+		harness.measure("Hash.toHash(byte[])", ops -> {
+			long h = 0;
+			for (int i = 0; i < ops; i++)
+				h += Hash.toHash(message).hashCode();
+			return h;
+		});
+		harness.measure("Hash.hash(direct, byte[])", ops -> {
+			for (int i = 0; i < ops; i++) {
+				frame.rewind();
+				Hash.hash(frame, out, 0);
+			}
+			return out[0];
+		});
+		for (DigestEngine engine : new DigestEngine[] { Hash.SHA1, Hash.SHA256, Hash.FAST }) {
+			harness.measure("Hash.hash(" + engine + ", direct, byte[])", ops -> {
+				for (int i = 0; i < ops; i++) {
+					frame.rewind();
+					Hash.hash(engine, frame, out, 0);
+				}
+				return out[0];
+			});
+		}
+		final DigestEngine cached = new DigestCache(1 << 20, 1).wrap(Hash.SHA1);
+		harness.measure("DigestCache hit", ops -> {
+			for (int i = 0; i < ops; i++) {
+				frame.rewind();
+				Hash.hash(cached, frame, out, 0);
+			}
+			return out[0];
+		});
+		harness.measure("DigestCache miss", ops -> {
+			for (int i = 0; i < ops; i++) {
+				// a payload never seen before
+				frame.putLong(0, i + System.nanoTime());
+				frame.rewind();
+				Hash.hash(cached, frame, out, 0);
+			}
+			return out[0];
+		});
+	}
+
+	/**
+	 * One item through each queue with 1, 4 and 16 producers against
+	 * {@link #CONSUMERS} consumers.
+	 */
+	private static void queue(Harness harness) throws Exception {
+		for (int producers : PRODUCERS) {
+			harness.measure("Queue " + producers + "P/" + CONSUMERS + "C",
+					ops -> (long) QueueBenchmark.run(new Queue<Integer>(CAPACITY), producers, CONSUMERS,
+							Math.max(ops, producers)));
+			harness.measure("RingQueue park " + producers + "P/" + CONSUMERS + "C",
+					ops -> (long) QueueBenchmark.run(new RingQueue<Integer>(CAPACITY, WaitStrategy.PARK), producers,
+							CONSUMERS, Math.max(ops, producers)));
+		}
+	}
+
+	/**
+	 * An empty task from the submitting thread through the queue and the
+	 * dispatcher to a pooled processor, in each scheduling mode.
+	 */
+	private static void pool(Harness harness) throws Exception {
+		for (String schedule : new String[] { "dispatch", "steal", "staged" }) {
+			ServerConfig config = new ServerConfig();
+			config.setPoolSize(POOL_SIZE);
+			config.setSchedule(schedule);
+			TaskManager manager = new TaskManager(config);
+			manager.start();
+			harness.measure("TaskManager handoff " + schedule, ops -> {
+				CountDownLatch done = new CountDownLatch(ops);
+				for (int i = 0; i < ops; i++)
+					manager.enqueueTask(new EmptyTask(done));
+				done.await();
+				return ops;
+			});
+			manager.close();
+		}
+	}
+
+	/**
+	 * Hashing a full read of {@link #READ_BATCH} frames where they lie in
+	 * the direct read buffer and giving the replies back, on this thread
+	 * and split across a ForkJoinPool of {@link #POOL_SIZE} workers, as
+	 * version 1 frames and as version 2 requests.
+	 */
+	private static void frame(Harness harness) throws Exception {
+		final BufferPool pool = new BufferPool(Frame.maxReplySize(), 1, 64, false);
+		final ByteBuffer[] replies = new ByteBuffer[READ_BATCH];
+		final ForkJoinPool forkJoin = new ForkJoinPool(POOL_SIZE);
+
+		for (boolean framed : new boolean[] { false, true }) {
+			int frameSize = framed ? Frame.HEADER + Message.size : Message.size;
+			final ByteBuffer inbound = ByteBuffer.allocateDirect(READ_BATCH * frameSize);
+			for (int k = 0; framed && k < READ_BATCH; k++)
+				inbound.putInt(k * frameSize, Message.size).putLong(k * frameSize + 4, k);
+			for (ForkJoinPool hashPool : new ForkJoinPool[] { null, forkJoin }) {
+				harness.measure("HashTask.hashFrames " + READ_BATCH + (framed ? " v2" : " v1") + " frames"
+						+ (hashPool == null ? "" : " parallel"), ops -> {
+							long bytes = 0;
+							for (int i = 0; i < ops; i++) {
+								// as if the socket had filled the buffer
+								inbound.clear();
+								HashTask.hashFrames(Hash.SHA1, hashPool, framed, inbound, pool, replies, READ_BATCH);
+								for (int k = 0; k < READ_BATCH; k++) {
+									bytes += replies[k].get(0);
+									pool.release(replies[k]);
+								}
+							}
+							return bytes;
+						});
+			}
+		}
+		forkJoin.shutdown();
+	}
+
+	/**
+	 * The whole server on loopback with the default settings.
+	 */
+	private static void loopback(int seconds) throws Exception {
+		ModeBenchmark.printHeader();
+		for (int clients : LOOPBACK_CLIENTS) {
+			ServerConfig config = new ServerConfig();
+			config.setPort(0);
+			config.setPoolSize(POOL_SIZE);
+			NioServer server = new NioServer(config);
+			server.start();
+			ModeBenchmark.run(server.getAddress(), "nio", clients, seconds);
+			server.close();
+		}
+	}
+
+	/**
+	 * Bytes allocated per message by every thread but the benchmark's own
+	 * while the server runs on loopback, the end to end counterpart of the
+	 * B/op column. In each schedule only the task objects of a read batch
+	 * should be left, the payload is never copied onto the heap.
+	 */
+	private static void alloc(int seconds) throws Exception {
+		if (Harness.countsAllocation() == false) {
+			System.out.println("This JVM cannot count allocated bytes per thread.");
+			return;
+		}
+		final Thread self = Thread.currentThread();
+		ModeBenchmark.printHeader();
+		for (String schedule : new String[] { "dispatch", "steal", "staged" }) {
+			ServerConfig config = new ServerConfig();
+			config.setPort(0);
+			config.setPoolSize(POOL_SIZE);
+			config.setSchedule(schedule);
+			NioServer server = new NioServer(config);
+			server.start();
+			final long[] marks = new long[2];
+			final int[] mark = { 0 };
+			long replies = ModeBenchmark.run(server.getAddress(), "nio", LOOPBACK_CLIENTS[0], seconds, () -> {
+				marks[mark[0]++] = Harness.allocated(thread -> thread != self
+						&& thread.getName().startsWith(ModeBenchmark.DRIVER_NAME) == false);
+			});
+			System.out.printf("%-36s %12.1f B/message over %d messages%n", "Server allocation " + schedule,
+					replies == 0 ? 0 : (marks[1] - marks[0]) / (double) replies, replies);
+			server.close();
+		}
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * Does nothing but count down, so only the scheduling is timed.
+	 */
+	private static final class EmptyTask extends Task {
+
+		final private CountDownLatch done;
+
+		EmptyTask(CountDownLatch done) {
+			super(TaskType.HASH, null);
+			this.done = done;
+		}
+
+		public void exec(TaskManager manager) {
+			this.done.countDown();
+		}
+
+	}
+
+}
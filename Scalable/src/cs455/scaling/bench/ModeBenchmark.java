@@ -0,0 +1,272 @@
+package cs455.scaling.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.server.*;
+
+/**
+ * Runs the NIO server and the thread per connection server in process on
+ * an ephemeral port and drives each with 100, 1,000 and 10,000 simulated
+ * clients. Every client is closed loop, it sends a frame, waits for the
+ * hash and checks it, then sends the next one. The clients are
+ * multiplexed over a handful of selector threads so the driver itself
+ * does not need a thread per client.
+ * 
+ * Usage: ModeBenchmark [seconds] [pool size] [clients ...]
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class ModeBenchmark {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static int DRIVER_THREADS = 2;
+
+	final private static long WARMUP_MILLIS = 2000;
+
+	/**
+	 * Driver threads are named starting with this, so what they allocate
+	 * can be told apart from what the server allocates.
+	 */
+	final static String DRIVER_NAME = "ModeBenchmark-Driver-";
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int[] counts = { 100, 1000, 10000 };
+		if (args.length > 2) {
+			counts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++)
+				counts[i - 2] = Integer.parseInt(args[i]);
+		}
+
+		printHeader();
+		for (String mode : new String[] { "nio", "threads" }) {
+			for (int clients : counts) {
+				ServerConfig config = new ServerConfig();
+				config.setPort(0);
+				config.setPoolSize(poolSize);
+				config.setMode(mode);
+				HashServer server = mode.equals("threads") ? new BlockingServer(config) : new NioServer(config);
+				server.start();
+				try {
+					run(server.getAddress(), mode, clients, seconds);
+				} catch (IOException e) {
+					System.out.printf("%-8s %8d  failed: %s%n", mode, clients, e.toString());
+				}
+				server.close();
+			}
+		}
+	}
+
+	static void printHeader() {
+		System.out.printf("%-8s %8s %14s %14s %12s %10s%n", "mode", "clients", "replies/s", "mean latency", "max latency",
+				"mismatch");
+	}
+
+	/**
+	 * Drive a running server with closed loop clients for a while and
+	 * print one row of results.
+	 */
+	static void run(InetSocketAddress address, String mode, int clients, int seconds)
+			throws IOException, InterruptedException {
+		run(address, mode, clients, seconds, null);
+	}
+
+	/**
+	 * The same, calling mark when the measured interval starts and again
+	 * when it ends.
+	 *
+	 * @return replies in the measured interval
+	 */
+	static long run(InetSocketAddress address, String mode, int clients, int seconds, Runnable mark)
+			throws IOException, InterruptedException {
+		ByteBuffer payload = Message.makeMessage();
+		byte[] expected = new byte[Hash.size];
+		Hash.hash(payload.duplicate(), expected, 0);
+
+		Driver[] drivers = new Driver[DRIVER_THREADS];
+		for (int i = 0; i < drivers.length; i++)
+			drivers[i] = new Driver(payload, expected, i);
+		try {
+			for (int i = 0; i < clients; i++)
+				drivers[i % drivers.length].connect(address);
+			for (Driver driver : drivers)
+				driver.start();
+
+			Thread.sleep(WARMUP_MILLIS);
+			for (Driver driver : drivers)
+				driver.reset();
+			if (mark != null)
+				mark.run();
+			Thread.sleep(seconds * 1000L);
+			if (mark != null)
+				mark.run();
+
+			long replies = 0, latency = 0, max = 0, mismatches = 0;
+			for (Driver driver : drivers) {
+				replies += driver.replies.sum();
+				latency += driver.latency.sum();
+				max = Math.max(max, driver.maxLatency);
+				mismatches += driver.mismatches.sum();
+			}
+			System.out.printf("%-8s %8d %14.0f %11.3f ms %9.3f ms %10d%n", mode, clients, replies / (double) seconds,
+					replies == 0 ? 0 : latency / 1e6 / replies, max / 1e6, mismatches);
+			return replies;
+		} finally {
+			for (Driver driver : drivers)
+				driver.close();
+		}
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * One selector thread driving many closed loop clients.
+	 */
+	private static final class Driver extends Thread {
+
+		final private Selector selector;
+
+		final private ByteBuffer payload;
+
+		final private byte[] expected;
+
+		final private List<SocketChannel> channels;
+
+		final LongAdder replies;
+
+		final LongAdder latency;
+
+		final LongAdder mismatches;
+
+		volatile long maxLatency;
+
+		private volatile boolean running;
+
+		Driver(ByteBuffer payload, byte[] expected, int index) throws IOException {
+			super(DRIVER_NAME + index);
+			this.selector = Selector.open();
+			this.payload = payload;
+			this.expected = expected;
+			this.channels = new ArrayList<SocketChannel>();
+			this.replies = new LongAdder();
+			this.latency = new LongAdder();
+			this.mismatches = new LongAdder();
+			this.running = true;
+			setDaemon(true);
+		}
+
+		void connect(InetSocketAddress address) throws IOException {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.configureBlocking(false);
+			this.channels.add(channel);
+			channel.register(this.selector, SelectionKey.OP_WRITE, new Client(this.payload.duplicate()));
+		}
+
+		void reset() {
+			this.replies.reset();
+			this.latency.reset();
+			this.mismatches.reset();
+			this.maxLatency = 0;
+		}
+
+		void close() throws InterruptedException {
+			this.running = false;
+			this.selector.wakeup();
+			this.join(5000);
+			for (SocketChannel channel : this.channels) {
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {}
+		}
+
+		public void run() {
+			try {
+				while (this.running) {
+					this.selector.select(100);
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid())
+							this.ready(key);
+					}
+				}
+			} catch (IOException e) {
+				if (this.running)
+					System.err.println("[ ERROR ] driver " + e.toString());
+			}
+		}
+
+		private void ready(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Client client = (Client) key.attachment();
+			if (key.isWritable()) {
+				if (client.out.position() == 0)
+					client.sentAt = System.nanoTime();
+				channel.write(client.out);
+				if (client.out.hasRemaining() == false) {
+					client.out.rewind();
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				if (channel.read(client.in) == -1) {
+					key.cancel();
+					return;
+				}
+				if (client.in.hasRemaining())
+					return;
+				long elapsed = System.nanoTime() - client.sentAt;
+				this.replies.increment();
+				this.latency.add(elapsed);
+				if (elapsed > this.maxLatency)
+					this.maxLatency = elapsed;
+				if (Arrays.equals(client.in.array(), this.expected) == false)
+					this.mismatches.increment();
+				client.in.clear();
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+	}
+
+	/**
+	 * One simulated client's buffers.
+	 */
+	private static final class Client {
+
+		final ByteBuffer out;
+
+		final ByteBuffer in;
+
+		long sentAt;
+
+		Client(ByteBuffer out) {
+			this.out = out;
+			this.in = ByteBuffer.allocate(Hash.size);
+		}
+
+	}
+
+}
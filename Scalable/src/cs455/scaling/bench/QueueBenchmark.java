@@ -0,0 +1,112 @@
+package cs455.scaling.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import cs455.scaling.util.*;
+
+/**
+ * Measures enqueue/dequeue throughput of the monitor guarded
+ * {@link Queue} against the {@link RingQueue} with each
+ * {@link WaitStrategy}. Every producer and consumer is a platform thread
+ * so the numbers line up with how the {@link Processor} pool uses the
+ * queue.
+ * 
+ * Usage: QueueBenchmark [producers] [consumers] [messages] [capacity]
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class QueueBenchmark {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static int ROUNDS = 5;
+
+	final private static int WARMUP = 2;
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Push <code>messages</code> items through the queue and time it.
+	 * 
+	 * @return operations per second
+	 */
+	public static double run(final TaskQueue<Integer> queue, int producers, int consumers, int messages)
+			throws InterruptedException {
+		final int perProducer = messages / producers;
+		final int perConsumer = perProducer * producers / consumers;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(producers + consumers);
+		final Integer item = Integer.valueOf(7);
+
+		for (int i = 0; i < producers; i++) {
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int k = 0; k < perProducer; k++)
+						queue.enqueue(item);
+				} catch (InterruptedException e) {}
+				done.countDown();
+			}, "Producer-" + i).start();
+		}
+		for (int i = 0; i < consumers; i++) {
+			// the last consumer takes the remainder so the queue drains
+			final int take = (i == consumers - 1) ? perProducer * producers - perConsumer * (consumers - 1)
+					: perConsumer;
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int k = 0; k < take; k++)
+						queue.dequeue();
+				} catch (InterruptedException e) {}
+				done.countDown();
+			}, "Consumer-" + i).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		return (perProducer * (double) producers) / (elapsed / 1e9);
+	}
+
+	private static void report(String name, TaskQueueFactory factory, int producers, int consumers, int messages,
+			int capacity) throws InterruptedException {
+		double best = 0;
+		double total = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			double ops = run(factory.make(capacity), producers, consumers, messages);
+			if (r < WARMUP)
+				continue;
+			total += ops;
+			best = Math.max(best, ops);
+		}
+		System.out.printf("%-22s %3dP/%-3dC  mean %,14.0f ops/s  best %,14.0f ops/s%n", name, producers, consumers,
+				total / ROUNDS, best);
+	}
+
+	private interface TaskQueueFactory {
+		TaskQueue<Integer> make(int capacity);
+	}
+
+	private static int argument(String[] args, int index, int fallback) {
+		if (args.length > index)
+			return Integer.parseInt(args[index]);
+		return fallback;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int producers = argument(args, 0, 4);
+		int consumers = argument(args, 1, 4);
+		int messages = argument(args, 2, 2000000);
+		int capacity = argument(args, 3, 10000);
+
+		System.out.println("[ BENCH ] " + messages + " messages, capacity " + capacity);
+		report("Queue", c -> new Queue<Integer>(c), producers, consumers, messages, capacity);
+		for (WaitStrategy strategy : WaitStrategy.values())
+			report("RingQueue " + strategy, c -> new RingQueue<Integer>(c, strategy), producers, consumers, messages,
+					capacity);
+	}
+
+}
@@ -0,0 +1,263 @@
+package cs455.scaling.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import cs455.scaling.msg.Message;
+
+/**
+ * An append only capture of the messages a client sent, kept in a memory
+ * mapped file so recording is a copy into the page cache and no system
+ * call per message. The file is a header followed by fixed size records:
+ *
+ * <pre>
+ * header  int magic, int version, int payload size, int unused,
+ *         long record count, long wall clock start in milliseconds
+ * record  long nanoseconds since the capture started, int stream,
+ *         int unused, payload
+ * </pre>
+ *
+ * The stream tells the clients of one capture apart, so a replay can
+ * send each on its own connection. The record count in the header is
+ * updated with every record, so a capture from a client that was killed
+ * is still readable up to its last complete record.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class Capture implements Closeable {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * "SCAP"
+	 */
+	final static int MAGIC = 0x53434150;
+
+	final static int VERSION = 1;
+
+	final static int HEADER = 32;
+
+	final static int RECORD_HEADER = 16;
+
+	final static int RECORD = RECORD_HEADER + Message.size;
+
+	/**
+	 * Records mapped at a time, 8 MB.
+	 */
+	final static int CHUNK_RECORDS = 1024;
+
+	final private static int COUNT_OFFSET = 16;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private FileChannel channel;
+
+	/**
+	 * The header, mapped for as long as the capture is open.
+	 */
+	final private MappedByteBuffer header;
+
+	/**
+	 * True when recording, false when reading back.
+	 */
+	final private boolean writing;
+
+	/**
+	 * The mapped chunk of records and which chunk it is, -1 for none.
+	 */
+	private MappedByteBuffer chunk;
+
+	private long chunkIndex;
+
+	/**
+	 * Records in the capture.
+	 */
+	private long count;
+
+	/**
+	 * {@link System#nanoTime()} when recording started.
+	 */
+	final private long start;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Capture(FileChannel channel, boolean writing) throws IOException {
+		this.channel = channel;
+		this.writing = writing;
+		this.header = channel.map(writing ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+				HEADER);
+		this.chunk = null;
+		this.chunkIndex = -1;
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Start a new capture, replacing any file at the path.
+	 */
+	public static Capture create(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		Capture capture = new Capture(channel, true);
+		capture.header.putInt(0, MAGIC);
+		capture.header.putInt(4, VERSION);
+		capture.header.putInt(8, Message.size);
+		capture.header.putLong(COUNT_OFFSET, 0);
+		capture.header.putLong(24, System.currentTimeMillis());
+		capture.count = 0;
+		return capture;
+	}
+
+	/**
+	 * Open a capture to read it back.
+	 *
+	 * @throws IOException
+	 *             if the file is not a capture of this version
+	 */
+	public static Capture open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		if (channel.size() < HEADER) {
+			channel.close();
+			throw new IOException(path + " is not a capture.");
+		}
+		Capture capture = new Capture(channel, false);
+		if (capture.header.getInt(0) != MAGIC || capture.header.getInt(4) != VERSION
+				|| capture.header.getInt(8) != Message.size) {
+			channel.close();
+			throw new IOException(path + " is not a version " + VERSION + " capture.");
+		}
+		// never trust the count past what was actually written
+		capture.count = Math.min(capture.header.getLong(COUNT_OFFSET), (channel.size() - HEADER) / RECORD);
+		return capture;
+	}
+
+	/**
+	 * Take a <code>-capture &lt;file&gt;</code> pair out of the command
+	 * line arguments.
+	 *
+	 * @return the file, or null if there was none
+	 */
+	static String option(List<String> args) {
+		return Client.option(args, "-capture");
+	}
+
+	/**
+	 * Start recording to a file for the rest of the process, closing the
+	 * capture when the process ends.
+	 */
+	static Capture record(String path) throws IOException {
+		final Capture capture = create(Paths.get(path));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				capture.close();
+				System.out.println("[ INFO ] Captured " + capture.getCount() + " messages to " + path);
+			} catch (IOException e) {
+				System.err.println("[ ERROR ] Could not close capture " + path + " " + e.toString());
+			}
+		}));
+		return capture;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Record one message. The payload's position is left where it was.
+	 * Messages sent after the capture was closed are not recorded.
+	 *
+	 * @param time
+	 *            when it was sent, in {@link System#nanoTime()} terms
+	 * @param stream
+	 *            which client sent it
+	 * @param payload
+	 *            {@link Message#size} bytes from its position
+	 */
+	public synchronized void append(long time, int stream, ByteBuffer payload) throws IOException {
+		if (this.channel.isOpen() == false)
+			return;
+		MappedByteBuffer region = this.region(this.count);
+		int offset = (int) (this.count % CHUNK_RECORDS) * RECORD;
+		region.putLong(offset, time - this.start);
+		region.putInt(offset + 8, stream);
+		region.position(offset + RECORD_HEADER);
+		int position = payload.position();
+		region.put(payload);
+		payload.position(position);
+		this.count++;
+		this.header.putLong(COUNT_OFFSET, this.count);
+	}
+
+	/**
+	 * @return nanoseconds from the start of the capture to the record
+	 */
+	public synchronized long getTime(long record) throws IOException {
+		return this.region(record).getLong((int) (record % CHUNK_RECORDS) * RECORD);
+	}
+
+	public synchronized int getStream(long record) throws IOException {
+		return this.region(record).getInt((int) (record % CHUNK_RECORDS) * RECORD + 8);
+	}
+
+	/**
+	 * Copy a record's payload into a buffer at its position.
+	 */
+	public synchronized void getPayload(long record, ByteBuffer out) throws IOException {
+		MappedByteBuffer region = this.region(record);
+		int offset = (int) (record % CHUNK_RECORDS) * RECORD + RECORD_HEADER;
+		region.limit(offset + Message.size).position(offset);
+		out.put(region);
+		region.limit(region.capacity());
+	}
+
+	public synchronized long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Flush what was recorded and cut the file down to its records.
+	 */
+	public synchronized void close() throws IOException {
+		if (this.channel.isOpen() == false)
+			return;
+		if (this.writing) {
+			if (this.chunk != null)
+				this.chunk.force();
+			this.header.force();
+			this.channel.truncate(HEADER + this.count * RECORD);
+		}
+		this.chunk = null;
+		this.chunkIndex = -1;
+		this.channel.close();
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * Map the chunk holding a record, growing the file when writing.
+	 */
+	private MappedByteBuffer region(long record) throws IOException {
+		long index = record / CHUNK_RECORDS;
+		if (index != this.chunkIndex) {
+			long position = HEADER + index * CHUNK_RECORDS * RECORD;
+			if (this.writing) {
+				// no force here, the kernel writes the shared pages back and
+				// close() forces the last chunk
+				this.chunk = this.channel.map(FileChannel.MapMode.READ_WRITE, position,
+						(long) CHUNK_RECORDS * RECORD);
+			} else {
+				long size = Math.min((long) CHUNK_RECORDS * RECORD, this.channel.size() - position);
+				this.chunk = this.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			}
+			this.chunkIndex = index;
+		}
+		return this.chunk;
+	}
+
+}
@@ -1,15 +1,26 @@
 package cs455.scaling.client;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Frame;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.util.DigestTable;
 
 /**
  * 
@@ -21,6 +32,19 @@ import java.util.LinkedList;
 
 public class Client {
 
+	// Class variables *************************************************
+
+	/**
+	 * Hashes sent at most this long ago are still waited for.
+	 */
+	final static long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Slots in the outstanding hash table, twice what 30 seconds at over
+	 * 1000 messages per second leaves outstanding.
+	 */
+	final static int OUTSTANDING = 1 << 16;
+
 	// Instance variables **********************************************
 	
 	/**
@@ -49,9 +73,10 @@ public class Client {
 	private final Receiver receiver;
 	
 	/**
-	 * 
+	 * Hashes sent and not yet answered, with their send time from
+	 * {@link System#nanoTime()}.
 	 */
-	private final LinkedList<String> hashList;
+	private final DigestTable hashList;
 	
 	// Constructors ****************************************************
 
@@ -65,33 +90,64 @@ public class Client {
 	 */
 
 	public Client(String serverAddress, int serverPort, int messageRate) throws IOException {
+		this(serverAddress, serverPort, messageRate, null);
+	}
+
+	/**
+	 * Constructs a client that records every message it sends.
+	 *
+	 * @param capture
+	 * 		where sent messages are recorded, or null.
+	 */
+	public Client(String serverAddress, int serverPort, int messageRate, Capture capture) throws IOException {
+		this(serverAddress, serverPort, messageRate, capture, null);
+	}
+
+	/**
+	 * Constructs a client that asks the server for a digest first.
+	 *
+	 * @param digest
+	 * 		the digest to negotiate, or null to send no handshake and get
+	 * 		SHA-1 as the original server answers.
+	 */
+	public Client(String serverAddress, int serverPort, int messageRate, Capture capture, DigestEngine digest)
+			throws IOException {
 		// Selector: multiplexor of SelectableChannel objects
 		this.selector = SelectorProvider.provider().openSelector();
+		DigestEngine engine = Hash.SHA1;
 		
-		// Create a new non-blocking socket channel
-		this.channel = SocketChannel.open();
-		this.channel.configureBlocking(false);
-		this.channel.connect(new InetSocketAddress(serverAddress, serverPort));
-		 
-		// Adjusts this channel's ops
-		this.channel.register(this.selector, SelectionKey.OP_CONNECT);
-		
-		//
-		this.selector.select();
-		this.key = selector.selectedKeys().iterator().next();
-		// Finish the connection. If the connection operation failed
-		// this will raise an IOException.
-		if (this.key.isConnectable() == false || this.channel.finishConnect() == false)
-			throw new IOException("Failed to connect to server.");
-
-		// Register an interest in read on this channel
-		this.key.interestOps(SelectionKey.OP_READ);
-		this.hashList = new LinkedList<>();
+		if (digest != null) {
+			// the handshake is done blocking before any message is sent
+			this.channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
+			engine = handshake(this.channel, digest);
+			this.channel.configureBlocking(false);
+			this.key = this.channel.register(this.selector, SelectionKey.OP_READ);
+		} else {
+			// Create a new non-blocking socket channel
+			this.channel = SocketChannel.open();
+			this.channel.configureBlocking(false);
+			this.channel.connect(new InetSocketAddress(serverAddress, serverPort));
+			 
+			// Adjusts this channel's ops
+			this.channel.register(this.selector, SelectionKey.OP_CONNECT);
+			
+			//
+			this.selector.select();
+			this.key = selector.selectedKeys().iterator().next();
+			// Finish the connection. If the connection operation failed
+			// this will raise an IOException.
+			if (this.key.isConnectable() == false || this.channel.finishConnect() == false)
+				throw new IOException("Failed to connect to server.");
+
+			// Register an interest in read on this channel
+			this.key.interestOps(SelectionKey.OP_READ);
+		}
+		this.hashList = new DigestTable(OUTSTANDING);
 		
 		// key is readable
-		this.receiver = new Receiver(this.hashList, this.key);
+		this.receiver = new Receiver(this.hashList, this.key, engine);
 		this.receiver.start();
-		this.sender = new Sender(this.hashList, this.key, messageRate);
+		this.sender = new Sender(this.hashList, this.key, messageRate, capture, engine);
 		this.sender.start();
 	}
 	
@@ -101,7 +157,9 @@ public class Client {
 		DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
 		while (true) {
 			Date current = new Date();
-			System.out.println("[ "+dateFormat.format(current)+" ] "+sender.getInfo()+receiver.getInfo());
+			this.hashList.expire(System.nanoTime() - TIMEOUT);
+			System.out.println("[ "+dateFormat.format(current)+" ] "+sender.getInfo()+receiver.getInfo()
+					+receiver.getLatencyInfo());
 			// [timestamp] Total Sent Count: x, Total Received Count: y 
 			try {
 				Thread.sleep(5000);
@@ -109,7 +167,93 @@ public class Client {
 		}
 	}
 	
+	// Class methods ***************************************************
+
+	/**
+	 * Take a <code>name &lt;value&gt;</code> pair out of the command line
+	 * arguments.
+	 *
+	 * @return the value, or null if there was none
+	 */
+	static String option(List<String> args, String name) {
+		int at = args.indexOf(name);
+		if (at == -1 || at + 1 == args.size())
+			return null;
+		args.remove(at);
+		return args.remove(at);
+	}
+
+	/**
+	 * Ask the server for a digest over a connected blocking channel: one
+	 * byte with the digest's id goes out, one byte with the id of the
+	 * digest the server will use comes back.
+	 *
+	 * @return the digest the server replies with
+	 * @throws IOException
+	 * 		if the server closes the connection or answers with an unknown id
+	 */
+	static DigestEngine handshake(SocketChannel channel, DigestEngine digest) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		buffer.put(digest.getId()).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		if (channel.read(buffer) == -1)
+			throw new EOFException();
+		DigestEngine engine = Hash.engine(buffer.get(0));
+		if (engine == null)
+			throw new IOException("Server answered the handshake with unknown digest " + buffer.get(0));
+		return engine;
+	}
+
+	/**
+	 * Open version 2 of the protocol over a connected blocking channel:
+	 * send a hello asking for a digest and read the server's reply.
+	 *
+	 * @param digest
+	 * 		the digest to ask for, or null for the server's
+	 * @return the digest the server replies with
+	 * @throws IOException
+	 * 		if the server does not speak version 2 or takes payloads smaller
+	 * 		than a message
+	 */
+	static DigestEngine hello(SocketChannel channel, DigestEngine digest) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Frame.HELLO_REPLY);
+		Frame.putHello(buffer, Frame.VERSION, digest == null ? 0 : digest.getId(), -1);
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) == -1)
+				throw new EOFException();
+		if (Frame.isHello(buffer) == false || buffer.get(4) < Frame.VERSION)
+			throw new IOException("Server does not speak protocol version 2.");
+		if (buffer.getInt(6) < Message.size)
+			throw new IOException("Server takes payloads of at most " + buffer.getInt(6) + " bytes.");
+		DigestEngine engine = Hash.engine(buffer.get(5));
+		if (engine == null)
+			throw new IOException("Server answered the hello with unknown digest " + buffer.get(5));
+		return engine;
+	}
+
 	public static void main(String args[]) {
+		// -capture <file> records every message sent for Replay
+		List<String> rest = new ArrayList<String>(Arrays.asList(args));
+		String capturePath = Capture.option(rest);
+		// -digest <name> negotiates the digest with the server
+		String digestName = option(rest, "-digest");
+		// -protocol 2 is only spoken by the simulated clients
+		if (rest.contains("-protocol") && rest.size() <= 5) {
+			System.err.println("Error: -protocol needs <host> <port> <rate> <clients>.");
+			System.exit(1);
+		}
+		// host port rate clients [threads] simulates many clients at once
+		if (rest.size() > 3) {
+			LoadGenerator.main(args);
+			return;
+		}
+		args = rest.toArray(new String[rest.size()]);
 		
 		int messageRate = 0;
 		int registryPort = 0;
@@ -139,9 +283,28 @@ public class Client {
 			messageRate = 1;
 		}
 
+		DigestEngine digest = null;
+		try {
+			if (digestName != null)
+				digest = Hash.engine(digestName);
+		} catch (IllegalArgumentException ex) {
+			System.err.println("Error: " + ex.getMessage());
+			System.exit(1);
+		}
+
+		Capture capture = null;
+		if (capturePath != null) {
+			try {
+				capture = Capture.record(capturePath);
+			} catch (IOException e) {
+				System.err.println("Error: could not create capture " + capturePath + " " + e.toString());
+				System.exit(1);
+			}
+		}
+
 		Client node = null;
 		try {
-			node = new Client(registryIP, registryPort, messageRate);
+			node = new Client(registryIP, registryPort, messageRate, capture, digest);
 		} catch (IOException e) {
 			System.err.println("An error occured while connecting to server.");
 			System.exit(1);
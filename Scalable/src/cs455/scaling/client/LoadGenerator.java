@@ -0,0 +1,640 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Frame;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.util.Histogram;
+
+/**
+ * Simulates many clients from one process. Each logical client has its
+ * own connection, send rate and list of outstanding hashes, but the
+ * connections are spread over a few selector threads instead of two
+ * threads per client. Every reply is checked against the hash of what was
+ * sent and its round trip time recorded from when it was due.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public class LoadGenerator {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Latencies are recorded in microseconds up to an hour.
+	 */
+	final static long HIGHEST_LATENCY = 3600L * 1000 * 1000;
+
+	/**
+	 * Hashes a logical client may be waiting on before it stops sending.
+	 */
+	final static int MAX_OUTSTANDING = 256;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The selector threads.
+	 */
+	final private Worker[] workers;
+
+	final private int clients;
+
+	final LongAdder sentCount;
+
+	final LongAdder receivedCount;
+
+	/**
+	 * Replies that matched no outstanding hash.
+	 */
+	final LongAdder mismatchCount;
+
+	/**
+	 * Sends skipped because a client had too many outstanding hashes.
+	 */
+	final LongAdder stalledCount;
+
+	/**
+	 * Round trip times in microseconds, across all clients.
+	 */
+	final Histogram latency;
+
+	/**
+	 * The latencies of the last interval, drained from latency.
+	 */
+	final private Histogram interval;
+
+	/**
+	 * Records every message sent, or null.
+	 */
+	final Capture capture;
+
+	/**
+	 * What every session asks the server to hash with, null to send no
+	 * handshake.
+	 */
+	final private DigestEngine digest;
+
+	/**
+	 * The protocol version every session speaks, 1 or 2.
+	 */
+	final private int protocol;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Connects every logical client. Nothing is sent until
+	 * {@link #start()}.
+	 * 
+	 * @param address
+	 *            the server
+	 * @param clients
+	 *            number of logical clients
+	 * @param threads
+	 *            number of selector threads
+	 * @param messageRate
+	 *            messages per second per client
+	 * @throws IOException
+	 *             if a client cannot connect
+	 */
+	public LoadGenerator(InetSocketAddress address, int clients, int threads, int messageRate) throws IOException {
+		this(address, clients, threads, messageRate, null);
+	}
+
+	/**
+	 * Connects every logical client, recording what each sends as its
+	 * own stream.
+	 *
+	 * @param capture
+	 *            where sent messages are recorded, or null
+	 */
+	public LoadGenerator(InetSocketAddress address, int clients, int threads, int messageRate, Capture capture)
+			throws IOException {
+		this(address, clients, threads, messageRate, capture, null);
+	}
+
+	/**
+	 * Connects every logical client, each negotiating a digest first.
+	 *
+	 * @param digest
+	 *            the digest to ask for, or null to send no handshake and
+	 *            get SHA-1 as the original server answers
+	 */
+	public LoadGenerator(InetSocketAddress address, int clients, int threads, int messageRate, Capture capture,
+			DigestEngine digest) throws IOException {
+		this(address, clients, threads, messageRate, capture, digest, 1);
+	}
+
+	/**
+	 * Connects every logical client speaking the given protocol version.
+	 * Version 2 sessions open with a hello instead of the one byte
+	 * handshake and match replies by request id.
+	 *
+	 * @param protocol
+	 *            1 or 2
+	 */
+	public LoadGenerator(InetSocketAddress address, int clients, int threads, int messageRate, Capture capture,
+			DigestEngine digest, int protocol) throws IOException {
+		this.clients = clients;
+		this.capture = capture;
+		this.digest = digest;
+		this.protocol = protocol;
+		this.sentCount = new LongAdder();
+		this.receivedCount = new LongAdder();
+		this.mismatchCount = new LongAdder();
+		this.stalledCount = new LongAdder();
+		this.latency = new Histogram(HIGHEST_LATENCY);
+		this.interval = new Histogram(HIGHEST_LATENCY);
+		this.workers = new Worker[threads];
+		long period = 1000000000L / messageRate;
+		for (int i = 0; i < threads; i++)
+			this.workers[i] = new Worker(this, i);
+		Random random = new Random();
+		for (int i = 0; i < clients; i++) {
+			SocketChannel channel = SocketChannel.open(address);
+			DigestEngine engine = Hash.SHA1;
+			if (protocol > 1)
+				engine = Client.hello(channel, digest);
+			else if (digest != null)
+				engine = Client.handshake(channel, digest);
+			channel.configureBlocking(false);
+			// stagger the first sends across one period
+			long offset = (long) (random.nextDouble() * period);
+			this.workers[i % threads].add(new Session(i, channel, engine, protocol > 1, period, offset, random));
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public void start() {
+		long now = System.nanoTime();
+		for (Worker worker : this.workers)
+			worker.begin(now);
+	}
+
+	public void close() {
+		for (Worker worker : this.workers)
+			worker.close();
+	}
+
+	/**
+	 * Counts and latency percentiles since the last call.
+	 */
+	public String getInfo() {
+		this.latency.drainTo(this.interval);
+		return "Clients: " + this.clients + ", Total Sent Count: " + this.sentCount.sumThenReset()
+				+ ", Total Received Count: " + this.receivedCount.sumThenReset() + ", Mismatched: "
+				+ this.mismatchCount.sumThenReset() + ", Stalled: " + this.stalledCount.sumThenReset()
+				+ ", Latency ms [ " + this.interval.getInfo(1000.0) + " ]";
+	}
+
+	public void exec() {
+		DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
+		while (true) {
+			try {
+				Thread.sleep(5000);
+			} catch (InterruptedException e) {
+				return;
+			}
+			System.out.println("[ " + dateFormat.format(new Date()) + " ] " + this.getInfo());
+		}
+	}
+
+	public static void main(String[] args) {
+		List<String> rest = new ArrayList<String>(Arrays.asList(args));
+		String capturePath = Capture.option(rest);
+		String digestName = Client.option(rest, "-digest");
+		String protocolName = Client.option(rest, "-protocol");
+		args = rest.toArray(new String[rest.size()]);
+		String serverIP = args.length > 0 ? args[0] : "saturn";
+		int serverPort = 60100;
+		int messageRate = 1;
+		int clients = 100;
+		int threads = 2;
+		DigestEngine digest = null;
+		int protocol = 1;
+		try {
+			if (digestName != null)
+				digest = Hash.engine(digestName);
+			if (protocolName != null)
+				protocol = Integer.parseInt(protocolName);
+			if (protocol != 1 && protocol != 2)
+				throw new IllegalArgumentException();
+			if (args.length > 1)
+				serverPort = Integer.parseInt(args[1]);
+			if (args.length > 2)
+				messageRate = Integer.parseInt(args[2]);
+			if (args.length > 3)
+				clients = Integer.parseInt(args[3]);
+			if (args.length > 4)
+				threads = Integer.parseInt(args[4]);
+		} catch (IllegalArgumentException ex) {
+			System.err.println("Usage: LoadGenerator <host> <port> <rate> <clients> <threads> [-capture <file>]"
+					+ " [-digest sha1|sha256|fast] [-protocol 1|2]");
+			System.exit(1);
+		}
+
+		Capture capture = null;
+		if (capturePath != null) {
+			try {
+				capture = Capture.record(capturePath);
+			} catch (IOException e) {
+				System.err.println("Error: could not create capture " + capturePath + " " + e.toString());
+				System.exit(1);
+			}
+		}
+
+		LoadGenerator generator = null;
+		try {
+			generator = new LoadGenerator(new InetSocketAddress(serverIP, serverPort), clients, threads, messageRate,
+					capture, digest, protocol);
+		} catch (IOException e) {
+			System.err.println("An error occured while connecting to server. " + e.toString());
+			System.exit(1);
+		}
+		System.out.println(clients + " clients connected over " + threads + " threads, sending " + messageRate
+				+ " messages per second each.");
+		generator.start();
+		generator.exec();
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * One logical client.
+	 */
+	static final class Session implements Comparable<Session> {
+
+		/**
+		 * Which client this is, its stream in a capture.
+		 */
+		final int index;
+
+		final SocketChannel channel;
+
+		/**
+		 * What the server hashes this session's messages with.
+		 */
+		final DigestEngine engine;
+
+		SelectionKey key;
+
+		/**
+		 * Nanoseconds between sends.
+		 */
+		final long period;
+
+		/**
+		 * When the next message is due in {@link System#nanoTime()} terms.
+		 */
+		long nextSend;
+
+		/**
+		 * Speaks version 2, requests carry a header and replies a request
+		 * id.
+		 */
+		final boolean framed;
+
+		/**
+		 * The whole request as written, the message behind a version 2
+		 * header.
+		 */
+		final ByteBuffer payload;
+
+		/**
+		 * Random message, the first eight bytes are a counter so every
+		 * message hashes differently.
+		 */
+		final ByteBuffer message;
+
+		long sequence;
+
+		/**
+		 * Id of the next version 2 request.
+		 */
+		long requestId;
+
+		/**
+		 * The part of the current message not yet written, null when idle.
+		 */
+		ByteBuffer out;
+
+		/**
+		 * Taken off the schedule because a message was due while the last
+		 * one was still being written.
+		 */
+		boolean blocked;
+
+		/**
+		 * A partly read reply.
+		 */
+		final ByteBuffer in;
+
+		/**
+		 * Ring of outstanding hashes and when they were sent. A version 2
+		 * request has the slot of its id, and the binary digest.
+		 */
+		final byte[][] hashes;
+
+		final long[] sentAt;
+
+		/**
+		 * The request id in each version 2 slot, -1 when free.
+		 */
+		final long[] ids;
+
+		int head;
+
+		int outstanding;
+
+		Session(int index, SocketChannel channel, DigestEngine engine, boolean framed, long period, long offset,
+				Random random) {
+			this.index = index;
+			this.channel = channel;
+			this.engine = engine;
+			this.framed = framed;
+			this.period = period;
+			this.nextSend = offset;
+			int header = framed ? Frame.HEADER : 0;
+			byte[] bytes = new byte[header + Message.size];
+			random.nextBytes(bytes);
+			this.payload = ByteBuffer.wrap(bytes);
+			this.payload.position(header);
+			this.message = this.payload.slice();
+			this.payload.clear();
+			if (framed)
+				this.payload.putInt(0, Message.size);
+			this.sequence = random.nextLong();
+			this.requestId = 0;
+			this.out = null;
+			int reply = framed ? Frame.replySize(engine) : engine.getHexSize();
+			this.in = ByteBuffer.allocate(reply);
+			this.hashes = new byte[MAX_OUTSTANDING][reply];
+			this.sentAt = new long[MAX_OUTSTANDING];
+			this.ids = new long[MAX_OUTSTANDING];
+			Arrays.fill(this.ids, -1);
+			this.head = 0;
+			this.outstanding = 0;
+		}
+
+		/**
+		 * Stamp a new payload, remember its hash and start writing it.
+		 * 
+		 * @param intended
+		 *            when the message was due
+		 * @return false if too many hashes are outstanding
+		 */
+		boolean prepare(long intended) {
+			if (this.outstanding == MAX_OUTSTANDING)
+				return false;
+			int slot = (this.head + this.outstanding) % MAX_OUTSTANDING;
+			if (this.framed) {
+				slot = (int) (this.requestId % MAX_OUTSTANDING);
+				// the oldest request with this slot is still unanswered
+				if (this.ids[slot] != -1)
+					return false;
+				this.ids[slot] = this.requestId;
+				this.payload.putLong(4, this.requestId++);
+			}
+			this.message.putLong(0, this.sequence++);
+			this.message.clear();
+			if (this.framed)
+				this.engine.digest(this.message, this.hashes[slot], 0);
+			else
+				Hash.hash(this.engine, this.message, this.hashes[slot], 0);
+			this.message.clear();
+			this.sentAt[slot] = intended;
+			this.outstanding++;
+			this.payload.clear();
+			this.out = this.payload;
+			return true;
+		}
+
+		/**
+		 * Match a complete reply against the outstanding hashes.
+		 * 
+		 * @param reply
+		 *            the reply at its front
+		 * @return the send time of the match or -1
+		 */
+		long match(byte[] reply) {
+			if (this.framed)
+				return this.matchFramed(reply);
+			int length = this.in.capacity();
+			for (int i = 0; i < this.outstanding; i++) {
+				int slot = (this.head + i) % MAX_OUTSTANDING;
+				if (Arrays.equals(this.hashes[slot], 0, length, reply, 0, length) == false)
+					continue;
+				long sent = this.sentAt[slot];
+				// move the head entry into the matched slot, then drop the head
+				if (slot != this.head) {
+					byte[] swap = this.hashes[slot];
+					this.hashes[slot] = this.hashes[this.head];
+					this.hashes[this.head] = swap;
+					this.sentAt[slot] = this.sentAt[this.head];
+				}
+				this.head = (this.head + 1) % MAX_OUTSTANDING;
+				this.outstanding--;
+				return sent;
+			}
+			return -1;
+		}
+
+		/**
+		 * Look a version 2 reply up by its request id and check its
+		 * digest.
+		 */
+		long matchFramed(byte[] reply) {
+			long id = 0;
+			for (int i = 0; i < Frame.REPLY_HEADER; i++)
+				id = id << 8 | (reply[i] & 0xff);
+			if (id < 0)
+				return -1;
+			int slot = (int) (id % MAX_OUTSTANDING);
+			int length = this.engine.getDigestSize();
+			if (this.ids[slot] != id || Arrays.equals(this.hashes[slot], 0, length, reply, Frame.REPLY_HEADER,
+					Frame.REPLY_HEADER + length) == false)
+				return -1;
+			this.ids[slot] = -1;
+			this.outstanding--;
+			return this.sentAt[slot];
+		}
+
+		public int compareTo(Session other) {
+			return Long.compare(this.nextSend, other.nextSend);
+		}
+
+	}
+
+	/**
+	 * A selector thread driving a share of the sessions.
+	 */
+	static final class Worker extends Thread {
+
+		final private LoadGenerator generator;
+
+		final private Selector selector;
+
+		/**
+		 * Sessions ordered by when their next message is due.
+		 */
+		final private PriorityQueue<Session> schedule;
+
+		private volatile boolean running;
+
+		Worker(LoadGenerator generator, int index) throws IOException {
+			this.generator = generator;
+			this.selector = Selector.open();
+			this.schedule = new PriorityQueue<Session>();
+			this.running = true;
+			super.setName("LoadGenerator-" + index);
+			super.setDaemon(true);
+		}
+
+		void add(Session session) throws IOException {
+			session.key = session.channel.register(this.selector, SelectionKey.OP_READ, session);
+			this.schedule.add(session);
+		}
+
+		/**
+		 * Turn the stagger offsets into absolute times and start.
+		 */
+		void begin(long now) {
+			for (Session session : this.schedule)
+				session.nextSend += now;
+			// offsets shift uniformly so the heap order still holds
+			this.start();
+		}
+
+		void close() {
+			this.running = false;
+			this.selector.wakeup();
+			for (SelectionKey key : this.selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {}
+			}
+		}
+
+		public void run() {
+			byte[] reply = new byte[Frame.maxReplySize()];
+			try {
+				while (this.running) {
+					long now = System.nanoTime();
+					this.sendDue(now);
+					Session next = this.schedule.peek();
+					if (next == null) {
+						// every session is blocked on a write, only the
+						// socket or close() can wake us
+						this.selector.select();
+					} else {
+						// rounded up, a send less than a millisecond away
+						// must not turn into a spin on selectNow()
+						long wait = (next.nextSend - now + 999999) / 1000000;
+						if (wait > 0)
+							this.selector.select(wait);
+						else
+							this.selector.selectNow();
+					}
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid())
+							this.ready(key, reply);
+					}
+				}
+			} catch (IOException e) {
+				if (this.running)
+					System.err.println("[ ERROR ] " + getName() + " " + e.toString());
+			}
+		}
+
+		/**
+		 * Start a message on every session whose time has come.
+		 */
+		private void sendDue(long now) throws IOException {
+			Session session;
+			while ((session = this.schedule.peek()) != null && session.nextSend <= now) {
+				this.schedule.poll();
+				if (session.out != null) {
+					// still writing, write() puts it back once the socket drains
+					session.blocked = true;
+					continue;
+				}
+				// latency counts from when the message was due, so a client
+				// that fell behind bursts to catch up and reports the wait
+				if (session.prepare(session.nextSend)) {
+					if (this.generator.capture != null)
+						this.generator.capture.append(session.nextSend, session.index, session.message);
+					this.write(session);
+				} else
+					this.generator.stalledCount.increment();
+				session.nextSend += session.period;
+				if (session.key.isValid())
+					this.schedule.add(session);
+			}
+		}
+
+		private void write(Session session) throws IOException {
+			session.channel.write(session.out);
+			if (session.out.hasRemaining()) {
+				session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			session.out = null;
+			session.key.interestOps(SelectionKey.OP_READ);
+			this.generator.sentCount.increment();
+			if (session.blocked) {
+				session.blocked = false;
+				this.schedule.add(session);
+			}
+		}
+
+		private void ready(SelectionKey key, byte[] reply) throws IOException {
+			Session session = (Session) key.attachment();
+			if (key.isWritable() && session.out != null)
+				this.write(session);
+			if (key.isReadable() == false)
+				return;
+			int read;
+			while ((read = session.channel.read(session.in)) > 0) {
+				if (session.in.hasRemaining())
+					continue;
+				session.in.flip();
+				session.in.get(reply, 0, session.in.capacity());
+				session.in.clear();
+				long sent = session.match(reply);
+				this.generator.receivedCount.increment();
+				if (sent < 0)
+					this.generator.mismatchCount.increment();
+				else
+					this.generator.latency.record((System.nanoTime() - sent) / 1000);
+			}
+			if (read == -1) {
+				System.err.println("[ ERROR ] Server closed a connection.");
+				key.cancel();
+				session.channel.close();
+			}
+		}
+
+	}
+
+}
@@ -4,9 +4,12 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.LongAdder;
 
+import cs455.scaling.msg.DigestEngine;
 import cs455.scaling.msg.Hash;
+import cs455.scaling.util.DigestTable;
+import cs455.scaling.util.Histogram;
 
 /**
  * 
@@ -25,9 +28,35 @@ public class Receiver extends Thread {
 	final private Selector selector;
 	
 	/**
-	 * 
+	 * Outstanding hashes and when they were sent.
+	 */
+	final private DigestTable hashList;
+
+	/**
+	 * What the server hashes with, agreed in the handshake.
+	 */
+	final private DigestEngine engine;
+
+	/**
+	 * The reply being read, reused for every reply.
+	 */
+	final private ByteBuffer bytes;
+
+	/**
+	 * The reply decoded back to a binary digest, zero padded to the
+	 * {@link DigestTable#KEY_SIZE} bytes the table compares.
+	 */
+	final private byte[] digest;
+
+	/**
+	 * Round trip times in microseconds, recorded as replies arrive.
+	 */
+	final private Histogram latency;
+
+	/**
+	 * The last interval's round trip times, drained from latency.
 	 */
-	final private LinkedList<String> hashList;
+	final private Histogram interval;
 
 	/**
 	 * 
@@ -37,7 +66,7 @@ public class Receiver extends Thread {
 	/**
 	 * 
 	 */
-	private Integer receivedCount;
+	final private LongAdder receivedCount;
 
 	/**
 	 * To stop the run loop.
@@ -55,11 +84,24 @@ public class Receiver extends Thread {
 	 * @param serverPort
 	 *            the port number.
 	 */
-	public Receiver(LinkedList<String> hashList, SelectionKey key) throws IOException {
+	public Receiver(DigestTable hashList, SelectionKey key) throws IOException {
+		this(hashList, key, Hash.SHA1);
+	}
+
+	/**
+	 * @param engine
+	 *            the digest the server replies with
+	 */
+	public Receiver(DigestTable hashList, SelectionKey key, DigestEngine engine) throws IOException {
 		this.hashList = hashList;
+		this.latency = new Histogram(LoadGenerator.HIGHEST_LATENCY);
+		this.interval = new Histogram(LoadGenerator.HIGHEST_LATENCY);
+		this.engine = engine;
+		this.bytes = ByteBuffer.allocate(engine.getHexSize());
+		this.digest = new byte[Math.max(DigestTable.KEY_SIZE, engine.getDigestSize())];
 		this.key = key;
 		this.selector = key.selector();
-		this.receivedCount = 0;
+		this.receivedCount = new LongAdder();
 		super.setName("Receiver-"+super.getId());
 	}
 
@@ -75,7 +117,8 @@ public class Receiver extends Thread {
 	final private void readFromServer(SelectionKey key) throws IOException {
 		SocketChannel channel = (SocketChannel) key.channel();
 		int read = 0;
-		ByteBuffer bytes = ByteBuffer.allocate(Hash.size);
+		ByteBuffer bytes = this.bytes;
+		bytes.clear();
 		try {
 			while (bytes.hasRemaining() && read != -1 && channel != null) {
 				read = channel.read(bytes);
@@ -89,9 +132,13 @@ public class Receiver extends Thread {
 		} catch (Exception e) {
 			this.close(1);
 		}
-		synchronized (this.hashList) {
-				this.hashList.remove(0);
-		}
+		long sent = DigestTable.MISSING;
+		if (Hash.fromHex(bytes.array(), 0, this.engine.getDigestSize(), this.digest, 0))
+			sent = this.hashList.remove(this.digest, 0);
+		else
+			this.hashList.countUnknown();
+		if (sent != DigestTable.MISSING)
+			this.latency.record((System.nanoTime() - sent) / 1000);
 		this.incrementReceived();
 	}
 
@@ -108,22 +155,24 @@ public class Receiver extends Thread {
 	 * TODO Comment incrementReceived
 	 */
 	final public void incrementReceived() {
-		synchronized (receivedCount) {
-			this.receivedCount++;
-		}
+		this.receivedCount.increment();
 	}
 
 	/**
 	 * TODO Comment getInfo
 	 */
 	final public String getInfo() {
-		String ret = ", Total Received Count: ";
-		synchronized (this.receivedCount) {
-			ret += this.receivedCount;
-			this.receivedCount = 0;
-		}
 		// Total Sent Count: x, Total Received Count: y
-		return ret;
+		return ", Total Received Count: " + this.receivedCount.sumThenReset();
+	}
+
+	/**
+	 * Round trip latency percentiles for the replies received since the
+	 * last call, in milliseconds.
+	 */
+	final public String getLatencyInfo() {
+		this.latency.drainTo(this.interval);
+		return ", "+this.hashList.getInfo()+", Latency ms [ "+this.interval.getInfo(1000.0)+" ]";
 	}
 
 	// RUN METHOD -------------------------------------------------------
@@ -0,0 +1,462 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.util.DigestTable;
+import cs455.scaling.util.Histogram;
+
+/**
+ * Sends a {@link Capture} back at a server, so the same traffic can be
+ * offered to every build and configuration without running the clients
+ * that produced it. Messages go out when they were sent in the capture,
+ * divided by the speed, or back to back at speed 0. Each stream of the
+ * capture keeps its own connection unless fewer connections are asked
+ * for. Replies are checked against the hashes sent and their latency is
+ * measured from when each message was due, as the clients do.
+ * <p>
+ * Every connection has its own queue of messages, written without
+ * blocking when the selector says it can take more, so a connection the
+ * server is slow to read from holds back only its own streams. One that
+ * takes nothing for {@link #BLOCKED_TIMEOUT} is closed and what was left
+ * for it is counted as dropped.
+ *
+ * Usage: Replay &lt;capture&gt; &lt;host&gt; &lt;port&gt; [speed] [connections]
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class Replay {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static long REPORT_NANOS = 5000000000L;
+
+	/**
+	 * How long a connection may take no part of a message before it is
+	 * given up on.
+	 */
+	final static long BLOCKED_TIMEOUT = Client.TIMEOUT;
+
+	/**
+	 * How often, in milliseconds, a replay with nothing due wakes to look
+	 * for blocked connections and report.
+	 */
+	final private static long POLL_MILLIS = 1000;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private Capture capture;
+
+	final private Link[] connections;
+
+	/**
+	 * The connection of each stream in the capture.
+	 */
+	final private HashMap<Integer, Integer> streams;
+
+	/**
+	 * Divides the capture's send times, 0 sends as fast as possible.
+	 */
+	final private double speed;
+
+	/**
+	 * Hashes sent and not yet answered, with when they were due.
+	 */
+	final private DigestTable hashList;
+
+	final private Selector selector;
+
+	/**
+	 * Messages sent and replies received since the last report. Only the
+	 * replay's thread touches them.
+	 */
+	private long sentCount;
+
+	private long receivedCount;
+
+	/**
+	 * Messages never sent because their connection was closed.
+	 */
+	private long droppedCount;
+
+	/**
+	 * Connections still open.
+	 */
+	private int open;
+
+	/**
+	 * Round trip times in microseconds, recorded as replies arrive.
+	 */
+	final private Histogram latency;
+
+	final private Histogram interval;
+
+	/**
+	 * Every round trip time of the replay.
+	 */
+	final private Histogram total;
+
+	/**
+	 * When the replay started sending.
+	 */
+	private long begin;
+
+	private long lastReport;
+
+	private long lastCheck;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the connections. Nothing is sent until {@link #run()}.
+	 *
+	 * @param capture
+	 *            what to send
+	 * @param address
+	 *            the server
+	 * @param speed
+	 *            how much faster than captured to send, 0 for no waits
+	 * @param connections
+	 *            connections to spread the streams over, 0 for one per
+	 *            stream
+	 */
+	public Replay(Capture capture, InetSocketAddress address, double speed, int connections) throws IOException {
+		this.capture = capture;
+		this.speed = speed;
+		this.streams = new HashMap<Integer, Integer>();
+		for (long i = 0; i < capture.getCount(); i++) {
+			Integer stream = capture.getStream(i);
+			if (this.streams.containsKey(stream) == false)
+				this.streams.put(stream, this.streams.size());
+		}
+		if (connections <= 0)
+			connections = Math.max(1, this.streams.size());
+		for (Integer stream : this.streams.keySet())
+			this.streams.put(stream, this.streams.get(stream) % connections);
+
+		this.hashList = new DigestTable(Client.OUTSTANDING);
+		this.latency = new Histogram(LoadGenerator.HIGHEST_LATENCY);
+		this.interval = new Histogram(LoadGenerator.HIGHEST_LATENCY);
+		this.total = new Histogram(LoadGenerator.HIGHEST_LATENCY);
+		this.sentCount = 0;
+		this.receivedCount = 0;
+		this.droppedCount = 0;
+		this.selector = Selector.open();
+		this.connections = new Link[connections];
+		for (int i = 0; i < connections; i++) {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.configureBlocking(false);
+			this.connections[i] = new Link(channel);
+			this.connections[i].key = channel.register(this.selector, SelectionKey.OP_READ, this.connections[i]);
+		}
+		this.open = connections;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Send the whole capture, then wait for the outstanding replies for up
+	 * to {@link Client#TIMEOUT} and print a summary.
+	 */
+	public void run() throws IOException {
+		System.out.printf("[ INFO ] Replaying %d messages, %.1f s, from %d streams over %d connections at %s%n",
+				this.capture.getCount(), this.capture.getCount() == 0 ? 0.0
+						: this.capture.getTime(this.capture.getCount() - 1) / 1e9,
+				this.streams.size(), this.connections.length,
+				this.speed == 0 ? "full speed" : this.speed + "x");
+
+		byte[] digest = new byte[Hash.digestSize];
+		long count = this.capture.getCount();
+		long next = 0;
+		long deadline = 0;
+		this.begin = System.nanoTime();
+		this.lastReport = this.begin;
+		this.lastCheck = this.begin;
+		while (true) {
+			long now = System.nanoTime();
+			next = this.queueDue(next, now, digest);
+			if (next == count && this.isWriting() == false) {
+				// everything is sent, wait for the replies
+				if (deadline == 0)
+					deadline = now + Client.TIMEOUT;
+				if (this.open == 0 || now - deadline >= 0 || this.hashList.getOutstanding() == 0)
+					break;
+			}
+			if (now - this.lastCheck >= POLL_MILLIS * 1000000) {
+				this.lastCheck = now;
+				this.closeBlocked(now);
+			}
+			this.report(now, false);
+
+			long wait = POLL_MILLIS;
+			if (next < count && this.speed > 0)
+				wait = Math.min(wait, (this.due(next) - now + 999999) / 1000000);
+			if (wait > 0)
+				this.selector.select(wait);
+			else
+				this.selector.selectNow();
+			now = System.nanoTime();
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Link link = (Link) key.attachment();
+				if (key.isValid() && key.isWritable())
+					this.write(link, now, digest);
+				if (key.isValid() && key.isReadable())
+					this.read(link, digest);
+			}
+		}
+		this.report(System.nanoTime(), true);
+		for (Link link : this.connections)
+			link.channel.close();
+		this.selector.close();
+		System.out.printf("[ INFO ] Replay done in %.1f s, %d replies missing, Latency ms [ %s ]%n",
+				(System.nanoTime() - this.begin) / 1e9, this.hashList.getOutstanding(), this.total.getInfo(1000.0));
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * When a record is due in {@link System#nanoTime()} terms.
+	 */
+	private long due(long record) throws IOException {
+		return this.begin + (long) (this.capture.getTime(record) / this.speed);
+	}
+
+	/**
+	 * Queue every record whose time has come on its connection and write
+	 * what the connections can take now. At full speed every record is
+	 * due at once, the queues only hold record numbers.
+	 *
+	 * @return the first record not yet due
+	 */
+	private long queueDue(long next, long now, byte[] digest) throws IOException {
+		long count = this.capture.getCount();
+		for (; next < count; next++) {
+			if (this.speed > 0 && this.due(next) - now > 0)
+				break;
+			Link link = this.connections[this.streams.get(this.capture.getStream(next))];
+			if (link.channel.isOpen() == false) {
+				this.droppedCount++;
+				continue;
+			}
+			link.queue.addLast(next);
+			if (link.out.hasRemaining() == false)
+				this.write(link, now, digest);
+		}
+		return next;
+	}
+
+	/**
+	 * Write a connection's queue until the socket takes no more, then wait
+	 * on OP_WRITE for the rest.
+	 */
+	private void write(Link link, long now, byte[] digest) throws IOException {
+		try {
+			while (true) {
+				if (link.out.hasRemaining() == false) {
+					Long record = link.queue.pollFirst();
+					if (record == null) {
+						link.key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					this.start(link, record, now, digest);
+				}
+				int written = link.channel.write(link.out);
+				if (written > 0)
+					link.progress = now;
+				if (link.out.hasRemaining()) {
+					link.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				this.sentCount++;
+			}
+		} catch (IOException e) {
+			this.close(link, e.toString());
+		}
+	}
+
+	/**
+	 * Load a record into a connection's buffer and put its hash on the
+	 * outstanding list, due when the capture says or now at full speed.
+	 */
+	private void start(Link link, long record, long now, byte[] digest) throws IOException {
+		link.out.clear();
+		this.capture.getPayload(record, link.out);
+		link.out.flip();
+		Hash.digest(link.out, digest, 0);
+		link.out.rewind();
+		this.hashList.put(digest, 0, this.speed > 0 ? this.due(record) : now);
+		link.progress = now;
+	}
+
+	/**
+	 * @return true while some connection has a message queued or part
+	 *         written
+	 */
+	private boolean isWriting() {
+		for (Link link : this.connections)
+			if (link.out.hasRemaining() || link.queue.isEmpty() == false)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Close every connection that has taken nothing of its message for
+	 * {@link #BLOCKED_TIMEOUT}.
+	 */
+	private void closeBlocked(long now) {
+		for (Link link : this.connections)
+			if (link.out.hasRemaining() && now - link.progress > BLOCKED_TIMEOUT)
+				this.close(link, "took nothing for " + BLOCKED_TIMEOUT / 1000000000 + " s");
+	}
+
+	/**
+	 * Close a connection and count what was still queued on it as dropped.
+	 */
+	private void close(Link link, String reason) {
+		if (link.channel.isOpen() == false)
+			return;
+		System.err.println("[ ERROR ] Closing a connection, " + reason + ", " + link.queue.size()
+				+ " messages not sent.");
+		this.droppedCount += link.queue.size();
+		link.queue.clear();
+		link.out.position(link.out.limit());
+		link.key.cancel();
+		try {
+			link.channel.close();
+		} catch (IOException e) {}
+		this.open--;
+	}
+
+	/**
+	 * Print the counts and latency of the last interval once it is over.
+	 */
+	private void report(long now, boolean force) {
+		if (force == false && now - this.lastReport < REPORT_NANOS)
+			return;
+		this.lastReport = now;
+		this.latency.drainTo(this.interval);
+		this.total.add(this.interval);
+		DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
+		System.out.println("[ " + dateFormat.format(new Date()) + " ] Total Sent Count: " + this.sentCount
+				+ ", Total Received Count: " + this.receivedCount + ", Dropped: " + this.droppedCount + ", "
+				+ this.hashList.getInfo() + ", Latency ms [ " + this.interval.getInfo(1000.0) + " ]");
+		this.sentCount = 0;
+		this.receivedCount = 0;
+		this.droppedCount = 0;
+	}
+
+	private void read(Link link, byte[] digest) {
+		ByteBuffer in = link.in;
+		int read;
+		try {
+			while ((read = link.channel.read(in)) > 0) {
+				if (in.hasRemaining())
+					continue;
+				long sent = DigestTable.MISSING;
+				if (Hash.fromHex(in.array(), 0, digest, 0))
+					sent = this.hashList.remove(digest, 0);
+				else
+					this.hashList.countUnknown();
+				if (sent != DigestTable.MISSING)
+					this.latency.record((System.nanoTime() - sent) / 1000);
+				this.receivedCount++;
+				in.clear();
+			}
+		} catch (IOException e) {
+			this.close(link, e.toString());
+			return;
+		}
+		if (read == -1)
+			this.close(link, "the server closed it");
+	}
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Usage: Replay <capture> <host> <port> [speed] [connections]");
+			System.exit(1);
+		}
+		double speed = 1;
+		int connections = 0;
+		int port = 0;
+		try {
+			port = Integer.parseInt(args[2]);
+			if (args.length > 3)
+				speed = Double.parseDouble(args[3]);
+			if (args.length > 4)
+				connections = Integer.parseInt(args[4]);
+		} catch (NumberFormatException ex) {
+			System.err.println("Usage: Replay <capture> <host> <port> [speed] [connections]");
+			System.exit(1);
+		}
+
+		try (Capture capture = Capture.open(Paths.get(args[0]))) {
+			new Replay(capture, new InetSocketAddress(args[1], port), speed, connections).run();
+		} catch (IOException e) {
+			System.err.println("[ ERROR ] Replay failed. " + e.toString());
+			System.exit(1);
+		}
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * One connection to the server and what is waiting to go out on it.
+	 */
+	static final class Link {
+
+		final SocketChannel channel;
+
+		SelectionKey key;
+
+		/**
+		 * Records waiting to be written, in capture order.
+		 */
+		final ArrayDeque<Long> queue;
+
+		/**
+		 * The message being written, nothing remaining when idle.
+		 */
+		final ByteBuffer out;
+
+		/**
+		 * When the message being written was started or last took bytes.
+		 */
+		long progress;
+
+		/**
+		 * A partly read reply.
+		 */
+		final ByteBuffer in;
+
+		Link(SocketChannel channel) {
+			this.channel = channel;
+			this.queue = new ArrayDeque<Long>();
+			this.out = ByteBuffer.allocate(Message.size);
+			this.out.limit(0);
+			this.progress = 0;
+			this.in = ByteBuffer.allocate(Hash.size);
+		}
+
+	}
+
+}
@@ -5,10 +5,13 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+import cs455.scaling.msg.DigestEngine;
 import cs455.scaling.msg.Hash;
 import cs455.scaling.msg.Message;
+import cs455.scaling.util.DigestTable;
 
 /**
  * 
@@ -19,6 +22,14 @@ import cs455.scaling.msg.Message;
 
 public class Sender extends Thread {
 
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Nanoseconds to wait before retrying a write the server has not
+	 * taken yet.
+	 */
+	final private static long BLOCKED_WAIT = 20000;
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -32,19 +43,36 @@ public class Sender extends Thread {
 	private boolean running;
 	
 	/**
-	 * 
+	 * Messages per second, sent on a fixed schedule however long each
+	 * send takes.
 	 */
 	final private int messageRate;
 	
 	/**
-	 * 
+	 * Outstanding hashes and when they were sent.
+	 */
+	final private DigestTable hashList;
+
+	/**
+	 * What the server hashes with, agreed in the handshake.
+	 */
+	final private DigestEngine engine;
+
+	/**
+	 * The digest of the message being sent, zero padded to the
+	 * {@link DigestTable#KEY_SIZE} bytes the table compares.
+	 */
+	final private byte[] digest;
+
+	/**
+	 * Records every message sent, or null.
 	 */
-	final private LinkedList<String> hashList;
+	final private Capture capture;
 	
 	/**
 	 * 
 	 */
-	private Integer sentCount;
+	final private LongAdder sentCount;
 	
 	// CONSTRUCTORS *****************************************************
 
@@ -56,37 +84,55 @@ public class Sender extends Thread {
 	 *            the server's host name.
 	 * @param serverPort
 	 *            the port number.
+	 * @param capture
+	 *            records what is sent, or null
 	 */
-	public Sender(LinkedList<String> hashList, SelectionKey key, int messageRate) {
+	public Sender(DigestTable hashList, SelectionKey key, int messageRate, Capture capture) {
+		this(hashList, key, messageRate, capture, Hash.SHA1);
+	}
+
+	/**
+	 * @param engine
+	 *            the digest the server replies with
+	 */
+	public Sender(DigestTable hashList, SelectionKey key, int messageRate, Capture capture, DigestEngine engine) {
 		this.hashList = hashList;
+		this.capture = capture;
+		this.engine = engine;
+		this.digest = new byte[Math.max(DigestTable.KEY_SIZE, engine.getDigestSize())];
 		this.key = key;
 		this.messageRate = messageRate;
-		this.sentCount = 0;
+		this.sentCount = new LongAdder();
 		super.setName("Sender-"+super.getId());
 	}
 
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. A full socket buffer is waited out, the
+	 * schedule falls behind and the wait shows up in the latency.
 	 * 
-	 * @param msg
-	 *            The message to be sent.
+	 * @param intended
+	 *            when the message was due, latency is measured from here
 	 * @exception IOException
 	 *                if an I/O error occurs when sending
 	 */
-	final private void sendToServer() throws IOException {
+	final private void sendToServer(long intended) throws IOException {
 		SocketChannel channel = (SocketChannel) this.key.channel();
 		if (channel == null)
 			throw new SocketException("[ ERROR ] invaid channel could not send.");
 		ByteBuffer bytes = Message.makeMessage();
-		synchronized (this.hashList) {
-			this.hashList.add(Hash.toHash(bytes.array()));
-		}
+		this.engine.digest(bytes, this.digest, 0);
+		bytes.rewind();
+		this.hashList.put(this.digest, 0, intended);
+		if (this.capture != null)
+			this.capture.append(intended, 0, bytes);
 		synchronized (channel) {
 			channel.write(bytes);
+			while (bytes.hasRemaining() && this.running) {
+				LockSupport.parkNanos(BLOCKED_WAIT);
+				channel.write(bytes);
+			}
 		}
-		if (bytes.remaining() > 0)
-			throw new IOException("[ ERROR ] Server buffer is full could not send.");
 		
 		this.incrementSent();
 	}
@@ -97,9 +143,7 @@ public class Sender extends Thread {
 	 * TODO Comment incrementSent
 	 */
 	final public void incrementSent() {
-		synchronized (sentCount) {
-			this.sentCount++;	
-		}
+		this.sentCount.increment();
 	}
 	
 	/**
@@ -114,39 +158,34 @@ public class Sender extends Thread {
 	 * @return
 	 */
 	final public String getInfo() {
-		String ret = "Total Sent Count: ";
-		synchronized (this.sentCount) {
-			ret += this.sentCount;
-			this.sentCount = 0;
-		}
-		return ret;
-	}
-
-	/**
-	 * Causes the server to stop accepting new connections.
-	 */
-	final public void sleep(int time) {
-		try {
-			Thread.sleep(time);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		return "Total Sent Count: " + this.sentCount.sumThenReset();
 	}
 	
 	// RUN METHOD -------------------------------------------------------
 
 	/**
-	 * Waits for messages from the server. When each arrives, a call is made to
-	 * <code>messageFromServer()</code>. Not to be explicitly called.
+	 * Sends messageRate messages per second on a fixed nanoTime schedule.
+	 * Each message has an intended send time. A stall does not lower the
+	 * offered rate: the messages that fell due meanwhile go out back to
+	 * back when it ends, and their latency counts from when they were due.
+	 * Not to be explicitly called.
 	 */
 	final public void run() {
 		connectionEstablished();
+		long period = Math.max(1, 1000000000L / this.messageRate);
+		long intended = System.nanoTime();
 		try {
 			while (this.running == true) {
-			    this.sendToServer();
-			    this.sleep(1000 / messageRate);
-			    this.key.selector().wakeup();
-				// generate packets is messageRate per-second;
+				long now = System.nanoTime();
+				if (intended - now > 0) {
+					LockSupport.parkNanos(intended - now);
+					continue;
+				}
+				while (intended - now <= 0 && this.running == true) {
+					this.sendToServer(intended);
+					intended += period;
+				}
+				this.key.selector().wakeup();
 			}
 		} catch (Exception exception) {
 			connectionException(exception);
@@ -0,0 +1,413 @@
+package cs455.scaling.msg;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the digests of recent payloads so a payload sent again, by a
+ * retrying client or a replayed capture, is answered without hashing it.
+ * Entries are found by a cheap fingerprint of a few words sampled from
+ * the payload and only count as hits if they were made by the same engine
+ * and the whole payload compares equal, so a fingerprint collision costs
+ * a compare and never a wrong digest.
+ * <p>
+ * The cache is split into stripes by fingerprint, each behind its own lock
+ * so processors rarely meet. Each stripe is a segmented LRU within its
+ * share of the byte budget: new entries start on probation, a hit moves
+ * them to the protected segment, and the protected segment's least
+ * recently used entries fall back to probation when it outgrows four
+ * fifths of the budget. Eviction takes from probation first. Like the
+ * doorkeeper of TinyLFU, a payload is only copied in the second time its
+ * fingerprint is seen, so traffic that never repeats costs no more than
+ * the fingerprint and a lookup.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class DigestCache {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Words sampled for the fingerprint, spread evenly over the payload.
+	 */
+	final private static int SAMPLES = 16;
+
+	/**
+	 * Bytes charged for an entry on top of its payload and digest.
+	 */
+	final private static int OVERHEAD = 96;
+
+	/**
+	 * Doorkeeper bits per stripe, cleared after a sixteenth as many
+	 * sightings so old sightings age out and few payloads seen once are
+	 * taken for repeats.
+	 */
+	final private static int DOORKEEPER_BITS = 1 << 15;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private Stripe[] stripes;
+
+	/**
+	 * stripes.length - 1
+	 */
+	final private int mask;
+
+	final private long budget;
+
+	/**
+	 * The caching view of each engine, made once.
+	 */
+	final private Map<DigestEngine, DigestEngine> engines;
+
+	final private LongAdder hits;
+
+	final private LongAdder misses;
+
+	/**
+	 * Lookups counted by the last {@link #takeHitRate()}.
+	 */
+	private long lastHits;
+
+	private long lastMisses;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param budget
+	 *            bytes of payloads, digests and bookkeeping to keep at most
+	 * @param stripes
+	 *            number of independently locked stripes, rounded up to a
+	 *            power of two
+	 */
+	public DigestCache(long budget, int stripes) {
+		int count = Integer.highestOneBit(Math.max(1, stripes));
+		if (count < stripes)
+			count <<= 1;
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			this.stripes[i] = new Stripe(budget / count);
+		this.mask = count - 1;
+		this.budget = budget;
+		this.engines = new ConcurrentHashMap<DigestEngine, DigestEngine>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.lastHits = 0;
+		this.lastMisses = 0;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return an engine that answers from this cache and otherwise hashes
+	 *         with the given engine, whose id and sizes it shares
+	 */
+	public DigestEngine wrap(DigestEngine engine) {
+		if (engine instanceof Cached)
+			return engine;
+		return this.engines.computeIfAbsent(engine, Cached::new);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return hits since the last call as a share of lookups, in percent
+	 */
+	public synchronized double takeHitRate() {
+		long hits = this.hits.sum();
+		long misses = this.misses.sum();
+		long lookups = hits - this.lastHits + misses - this.lastMisses;
+		double rate = lookups == 0 ? 0 : 100.0 * (hits - this.lastHits) / lookups;
+		this.lastHits = hits;
+		this.lastMisses = misses;
+		return rate;
+	}
+
+	/**
+	 * @return bytes held, as charged against the budget
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Stripe stripe : this.stripes)
+			size += stripe.getSize();
+		return size;
+	}
+
+	/**
+	 * The hit rate since the last call and how full the cache is.
+	 */
+	public String getInfo() {
+		return String.format("Cache Hits: %.1f%%, Cache: %.1f/%.1f MB", this.takeHitRate(),
+				this.getSize() / 1048576.0, this.budget / 1048576.0);
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * Mix the length, the engine and {@link #SAMPLES} words read from
+	 * across the payload, without moving its position.
+	 */
+	private static long fingerprint(ByteBuffer bytes, byte engine) {
+		int position = bytes.position();
+		int length = bytes.remaining();
+		long h = length * 0x9e3779b97f4a7c15L + engine;
+		if (length < 8) {
+			for (int i = 0; i < length; i++)
+				h = (h ^ bytes.get(position + i)) * 0x100000001b3L;
+			return mix(h);
+		}
+		long step = (length - 8) / (SAMPLES - 1);
+		for (int i = 0; i < SAMPLES; i++)
+			h = Long.rotateLeft(h ^ bytes.getLong(position + (int) (i * step)) * 0xc2b2ae3d27d4eb4fL, 31)
+					* 0x9e3779b97f4a7c15L;
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * An engine answering from the cache first.
+	 */
+	private final class Cached implements DigestEngine {
+
+		final private DigestEngine engine;
+
+		Cached(DigestEngine engine) {
+			this.engine = engine;
+		}
+
+		public String getName() {
+			return this.engine.getName();
+		}
+
+		public byte getId() {
+			return this.engine.getId();
+		}
+
+		public int getDigestSize() {
+			return this.engine.getDigestSize();
+		}
+
+		public void digest(ByteBuffer bytes, byte[] out, int offset) {
+			byte id = this.engine.getId();
+			long fingerprint = fingerprint(bytes, id);
+			Stripe stripe = stripes[(int) fingerprint & mask];
+			if (stripe.lookup(fingerprint, id, bytes, out, offset)) {
+				hits.increment();
+				bytes.position(bytes.limit());
+				return;
+			}
+			misses.increment();
+			int position = bytes.position();
+			this.engine.digest(bytes, out, offset);
+			stripe.admit(fingerprint, id, bytes, position, out, offset, this.engine.getDigestSize());
+		}
+
+		public String toString() {
+			return this.engine.toString();
+		}
+
+	}
+
+	/**
+	 * A remembered payload and its digest, never changed once made.
+	 */
+	private static final class Entry {
+
+		/**
+		 * The id of the engine that made the digest.
+		 */
+		final byte engine;
+
+		final ByteBuffer payload;
+
+		final byte[] digest;
+
+		final int cost;
+
+		Entry(byte engine, ByteBuffer payload, byte[] digest) {
+			this.engine = engine;
+			this.payload = payload;
+			this.digest = digest;
+			this.cost = payload.capacity() + digest.length + OVERHEAD;
+		}
+
+		boolean matches(byte engine, ByteBuffer bytes) {
+			return this.engine == engine && this.payload.equals(bytes);
+		}
+
+	}
+
+	/**
+	 * One lock's share of the cache, a segmented LRU with a doorkeeper.
+	 */
+	private static final class Stripe {
+
+		final private long budget;
+
+		/**
+		 * Most bytes the protected segment may hold.
+		 */
+		final private long protectedBudget;
+
+		/**
+		 * Entries seen once since they were admitted or last demoted,
+		 * least recently used first.
+		 */
+		final private LinkedHashMap<Long, Entry> probation;
+
+		/**
+		 * Entries hit at least once, least recently used first.
+		 */
+		final private LinkedHashMap<Long, Entry> hot;
+
+		/**
+		 * Fingerprints seen once and not admitted yet.
+		 */
+		final private long[] doorkeeper;
+
+		private int sightings;
+
+		private long probationBytes;
+
+		private long protectedBytes;
+
+		Stripe(long budget) {
+			this.budget = budget;
+			this.protectedBudget = budget * 4 / 5;
+			this.probation = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+			this.hot = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+			this.doorkeeper = new long[DOORKEEPER_BITS / 64];
+			this.sightings = 0;
+			this.probationBytes = 0;
+			this.protectedBytes = 0;
+		}
+
+		/**
+		 * @return true and the digest in out if the payload is cached with
+		 *         the engine's digest
+		 */
+		synchronized boolean lookup(long fingerprint, byte engine, ByteBuffer bytes, byte[] out, int offset) {
+			Long key = fingerprint;
+			Entry entry = this.hot.get(key);
+			if (entry == null) {
+				entry = this.probation.get(key);
+				if (entry == null || entry.matches(engine, bytes) == false)
+					return false;
+				this.probation.remove(key);
+				this.probationBytes -= entry.cost;
+				this.hot.put(key, entry);
+				this.protectedBytes += entry.cost;
+				this.demote();
+			} else if (entry.matches(engine, bytes) == false) {
+				return false;
+			}
+			System.arraycopy(entry.digest, 0, out, offset, entry.digest.length);
+			return true;
+		}
+
+		/**
+		 * Copy a payload in on the second sighting of its fingerprint.
+		 *
+		 * @param position
+		 *            where the payload started, it ends at bytes' limit
+		 */
+		void admit(long fingerprint, byte engine, ByteBuffer bytes, int position, byte[] digest, int offset,
+				int size) {
+			if (this.sighted(fingerprint) == false)
+				return;
+			int length = bytes.limit() - position;
+			if (length + size + OVERHEAD > this.budget)
+				return;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			payload.put(0, bytes, position, length);
+			byte[] copy = new byte[size];
+			System.arraycopy(digest, offset, copy, 0, size);
+			Entry entry = new Entry(engine, payload, copy);
+			synchronized (this) {
+				Long key = fingerprint;
+				Entry old = this.hot.remove(key);
+				if (old != null)
+					this.protectedBytes -= old.cost;
+				old = this.probation.put(key, entry);
+				if (old != null)
+					this.probationBytes -= old.cost;
+				this.probationBytes += entry.cost;
+				this.evict();
+			}
+		}
+
+		synchronized long getSize() {
+			return this.probationBytes + this.protectedBytes;
+		}
+
+		/**
+		 * Set the fingerprint's doorkeeper bits.
+		 *
+		 * @return true if they were all set already
+		 */
+		private synchronized boolean sighted(long fingerprint) {
+			int a = (int) (fingerprint >>> 20) & (DOORKEEPER_BITS - 1);
+			int b = (int) (fingerprint >>> 40) & (DOORKEEPER_BITS - 1);
+			boolean seen = (this.doorkeeper[a >>> 6] & 1L << a) != 0 && (this.doorkeeper[b >>> 6] & 1L << b) != 0;
+			if (seen)
+				return true;
+			this.doorkeeper[a >>> 6] |= 1L << a;
+			this.doorkeeper[b >>> 6] |= 1L << b;
+			if (++this.sightings > DOORKEEPER_BITS / 16) {
+				Arrays.fill(this.doorkeeper, 0);
+				this.sightings = 0;
+			}
+			return false;
+		}
+
+		/**
+		 * Move the protected segment's least recently used entries to
+		 * probation until it is within its budget.
+		 */
+		private void demote() {
+			Iterator<Map.Entry<Long, Entry>> eldest = this.hot.entrySet().iterator();
+			while (this.protectedBytes > this.protectedBudget && eldest.hasNext()) {
+				Map.Entry<Long, Entry> demoted = eldest.next();
+				eldest.remove();
+				this.protectedBytes -= demoted.getValue().cost;
+				this.probation.put(demoted.getKey(), demoted.getValue());
+				this.probationBytes += demoted.getValue().cost;
+			}
+			this.evict();
+		}
+
+		/**
+		 * Drop least recently used entries, probation first, until the
+		 * stripe is within its budget.
+		 */
+		private void evict() {
+			Iterator<Map.Entry<Long, Entry>> eldest = this.probation.entrySet().iterator();
+			while (this.probationBytes + this.protectedBytes > this.budget && eldest.hasNext()) {
+				this.probationBytes -= eldest.next().getValue().cost;
+				eldest.remove();
+			}
+			eldest = this.hot.entrySet().iterator();
+			while (this.probationBytes + this.protectedBytes > this.budget && eldest.hasNext()) {
+				this.protectedBytes -= eldest.next().getValue().cost;
+				eldest.remove();
+			}
+		}
+
+	}
+
+}
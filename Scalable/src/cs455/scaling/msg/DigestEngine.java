@@ -0,0 +1,56 @@
+package cs455.scaling.msg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A digest algorithm the server can answer with. Engines are stateless
+ * to their callers and safe to share between threads. Each has a one
+ * byte id, which is what client and server exchange in the handshake,
+ * and a name used on the command line. The built in engines are
+ * {@link Hash#SHA1}, {@link Hash#SHA256} and {@link Hash#FAST}; others
+ * are added with {@link Hash#register(DigestEngine)} or listed for
+ * {@link java.util.ServiceLoader} in
+ * META-INF/services/cs455.scaling.msg.DigestEngine.
+ *
+ * @author G van Andel
+ *
+ */
+
+public interface DigestEngine {
+
+	/**
+	 * @return the name used on the command line
+	 */
+	public String getName();
+
+	/**
+	 * @return the id sent in the handshake
+	 */
+	public byte getId();
+
+	/**
+	 * @return length of the binary digest in bytes
+	 */
+	public int getDigestSize();
+
+	/**
+	 * @return length of the hex digest sent on the wire
+	 */
+	default int getHexSize() {
+		return 2 * this.getDigestSize();
+	}
+
+	/**
+	 * Compute the binary digest of the remaining bytes of a buffer, heap
+	 * or direct.
+	 *
+	 * @param bytes
+	 *            the message, its position is moved to its limit
+	 * @param out
+	 *            receives {@link #getDigestSize()} bytes
+	 * @param offset
+	 *            where in out to write
+	 */
+	public void digest(ByteBuffer bytes, byte[] out, int offset);
+
+}
@@ -0,0 +1,101 @@
+package cs455.scaling.msg;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fast non cryptographic 128 bit hash in the style of MurmurHash3
+ * x64_128, for test rigs that want to load the server's I/O path rather
+ * than its CPU. Anyone can make two messages with the same digest, it
+ * must not be used where that matters. Words are read big endian
+ * whatever the buffer's byte order, so client and server always agree.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class FastDigestEngine implements DigestEngine {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static long C1 = 0x87c37b91114253d5L;
+
+	final private static long C2 = 0x4cf5ad432745937fL;
+
+	// INSTANCE METHODS *************************************************
+
+	public String getName() {
+		return "fast";
+	}
+
+	public byte getId() {
+		return 3;
+	}
+
+	public int getDigestSize() {
+		return 16;
+	}
+
+	public void digest(ByteBuffer bytes, byte[] out, int offset) {
+		boolean swap = bytes.order() == ByteOrder.LITTLE_ENDIAN;
+		int position = bytes.position();
+		int limit = bytes.limit();
+		long length = limit - position;
+		long h1 = length;
+		long h2 = ~length;
+		for (; limit - position >= 16; position += 16) {
+			long k1 = bytes.getLong(position);
+			long k2 = bytes.getLong(position + 8);
+			if (swap) {
+				k1 = Long.reverseBytes(k1);
+				k2 = Long.reverseBytes(k2);
+			}
+			h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+			h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52dce729;
+			h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+			h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495ab5;
+		}
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = 0; position < limit; position++, i++) {
+			long b = bytes.get(position) & 0xff;
+			if (i < 8)
+				k1 |= b << (8 * i);
+			else
+				k2 |= b << (8 * (i - 8));
+		}
+		h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+		h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+		bytes.position(limit);
+
+		h1 += h2;
+		h2 += h1;
+		h1 = mix(h1);
+		h2 = mix(h2);
+		h1 += h2;
+		h2 += h1;
+		for (int i = 0; i < 8; i++) {
+			out[offset + i] = (byte) (h1 >>> (56 - 8 * i));
+			out[offset + 8 + i] = (byte) (h2 >>> (56 - 8 * i));
+		}
+	}
+
+	public String toString() {
+		return this.getName();
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * MurmurHash3's 64 bit finalizer.
+	 */
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+}
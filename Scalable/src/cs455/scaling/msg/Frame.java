@@ -0,0 +1,126 @@
+package cs455.scaling.msg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Version 2 of the wire protocol. A client opts in by opening with a
+ * hello, anything else is taken for a version 1 client sending raw
+ * {@link Message#size} byte payloads, so old clients keep working.
+ * <ul>
+ * <li>Hello, client to server: the magic "SCV2", the highest version the
+ * client speaks and the id of the digest it wants, 0 for the server's.</li>
+ * <li>Hello reply: the magic, the version agreed on, the id of the digest
+ * the server will use and the largest payload it takes.</li>
+ * <li>Request: payload length, a request id the client chooses and the
+ * payload, at most the largest payload long.</li>
+ * <li>Reply: the request id and the binary digest of the payload, so
+ * replies can be matched whatever order they arrive in.</li>
+ * </ul>
+ * Integers are big endian.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class Frame {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * "SCV2", the first four bytes of a version 2 connection.
+	 */
+	final public static int MAGIC = 0x53435632;
+
+	/**
+	 * The first byte of the magic, a version 1 payload starting with
+	 * anything else needs no second look.
+	 */
+	final public static byte MAGIC_FIRST = (byte) (MAGIC >>> 24);
+
+	final public static byte VERSION = 2;
+
+	/**
+	 * Magic, version and digest id.
+	 */
+	final public static int HELLO = 6;
+
+	/**
+	 * Magic, version, digest id and largest payload.
+	 */
+	final public static int HELLO_REPLY = 10;
+
+	/**
+	 * Payload length and request id in front of every request.
+	 */
+	final public static int HEADER = 12;
+
+	/**
+	 * Request id in front of every reply's digest.
+	 */
+	final public static int REPLY_HEADER = 8;
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return bytes of a reply hashed with the given engine
+	 */
+	public static int replySize(DigestEngine engine) {
+		return REPLY_HEADER + engine.getDigestSize();
+	}
+
+	/**
+	 * @return the longest reply of either version with any registered
+	 *         engine, sizes reply buffers
+	 */
+	public static int maxReplySize() {
+		return Math.max(Hash.getMaxHexSize(), REPLY_HEADER + Hash.getMaxDigestSize());
+	}
+
+	/**
+	 * Put a hello, or its reply when maxPayload is not negative, into a
+	 * buffer at its position.
+	 */
+	public static void putHello(ByteBuffer out, byte version, byte digestId, int maxPayload) {
+		out.putInt(MAGIC);
+		out.put(version);
+		out.put(digestId);
+		if (maxPayload >= 0)
+			out.putInt(maxPayload);
+	}
+
+	/**
+	 * @return true if the buffer starts with the magic, it must hold four
+	 *         bytes
+	 */
+	public static boolean isHello(ByteBuffer in) {
+		return in.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * Count the complete requests at the front of a buffer.
+	 *
+	 * @param in
+	 *            requests from index 0
+	 * @param end
+	 *            how many bytes of the buffer hold data
+	 * @param maxPayload
+	 *            the largest payload allowed
+	 * @return the number of complete requests, -1 if one announces a
+	 *         payload that is negative or too large
+	 */
+	public static int count(ByteBuffer in, int end, int maxPayload) {
+		int count = 0;
+		int position = 0;
+		while (end - position >= HEADER) {
+			int length = in.getInt(position);
+			if (length < 0 || length > maxPayload)
+				return -1;
+			if (end - position - HEADER < length)
+				break;
+			position += HEADER + length;
+			count++;
+		}
+		return count;
+	}
+
+}
@@ -1,25 +1,317 @@
 package cs455.scaling.msg;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hashing of messages through a {@link DigestEngine}, SHA-1 unless one
+ * is given. Every thread keeps its own scratch space, so the ByteBuffer
+ * and byte[] methods allocate nothing once a thread has hashed its first
+ * message. The String methods are thin wrappers kept for the client.
+ * <p>
+ * Engines are looked up by name and handshake id among the built in ones,
+ * any a {@link ServiceLoader} finds on the class path and any given to
+ * {@link #register(DigestEngine)}.
+ */
 
 public class Hash {
 	
+	/**
+	 * Length of the hex encoded SHA-1 digest sent on the wire.
+	 */
 	final static public int size = 40;
 
-	public static String toHash(byte[] bytes) {
-		MessageDigest digest = null;
+	/**
+	 * Length of the binary SHA-1 digest.
+	 */
+	final static public int digestSize = 20;
+
+	/**
+	 * The original and default engine.
+	 */
+	final static public DigestEngine SHA1 = new JcaDigestEngine("sha1", 1, "SHA-1", 20);
+
+	final static public DigestEngine SHA256 = new JcaDigestEngine("sha256", 2, "SHA-256", 32);
+
+	/**
+	 * Not cryptographic, for test rigs only.
+	 */
+	final static public DigestEngine FAST = new FastDigestEngine();
+
+	/**
+	 * Every engine that can be picked, the built in ones first.
+	 */
+	final private static CopyOnWriteArrayList<DigestEngine> ENGINES = new CopyOnWriteArrayList<DigestEngine>();
+
+	/**
+	 * The longest binary digest of any registered engine.
+	 */
+	private static volatile int maxDigestSize = 0;
+
+	final private static byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	final private static ThreadLocal<Hasher> HASHER = ThreadLocal.withInitial(Hasher::new);
+
+	static {
+		register(SHA1);
+		register(SHA256);
+		register(FAST);
 		try {
-			digest = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {}
-		byte[] hash = digest.digest(bytes);
-		BigInteger hashInt = new BigInteger(1, hash);
-		String ret = hashInt.toString(16);
-		if (ret.length() == size)
-			return ret;
-		for (int i = ret.length(); i < size; i++)
-			ret = "0" + ret;
-		return ret;
+			for (DigestEngine engine : ServiceLoader.load(DigestEngine.class))
+				register(engine);
+		} catch (ServiceConfigurationError | IllegalArgumentException e) {
+			System.err.println("[ ERROR ] Could not load a digest engine. " + e.toString());
+		}
+	}
+
+	// ENGINES ----------------------------------------------------------
+
+	/**
+	 * Make an engine selectable by its name and handshake id. Servers size
+	 * their reply buffers from {@link #getMaxDigestSize()} when they are
+	 * built, so an engine must be registered before then.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the id is 0, which a version 2 hello uses to leave the
+	 *             choice to the server, or the name or id is taken
+	 */
+	public static synchronized void register(DigestEngine engine) {
+		if (engine.getId() == 0)
+			throw new IllegalArgumentException("Digest id 0 is reserved.");
+		for (DigestEngine known : ENGINES)
+			if (known.getId() == engine.getId() || known.getName().equals(engine.getName()))
+				throw new IllegalArgumentException(
+						"Digest " + engine.getName() + " clashes with " + known.getName() + ".");
+		ENGINES.add(engine);
+		maxDigestSize = Math.max(maxDigestSize, engine.getDigestSize());
+	}
+
+	/**
+	 * @return the longest binary digest of any registered engine
+	 */
+	public static int getMaxDigestSize() {
+		return maxDigestSize;
 	}
+
+	/**
+	 * @return the longest hex digest of any registered engine
+	 */
+	public static int getMaxHexSize() {
+		return 2 * maxDigestSize;
+	}
+
+	/**
+	 * @return the engine with the given command line name
+	 * @throws IllegalArgumentException
+	 *             if there is none
+	 */
+	public static DigestEngine engine(String name) {
+		StringBuilder names = new StringBuilder();
+		for (DigestEngine engine : ENGINES) {
+			if (engine.getName().equals(name))
+				return engine;
+			names.append(names.length() == 0 ? "" : ", ").append(engine.getName());
+		}
+		throw new IllegalArgumentException("Digest must be one of " + names + ".");
+	}
+
+	/**
+	 * @return the engine with the given handshake id, or null if there is
+	 *         none
+	 */
+	public static DigestEngine engine(byte id) {
+		for (DigestEngine engine : ENGINES)
+			if (engine.getId() == id)
+				return engine;
+		return null;
+	}
+
+	// STRING API -------------------------------------------------------
+
+	public static String toHash(byte[] bytes) {
+		return toHash(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Hash the remaining bytes of a buffer, heap or direct. The buffer's
+	 * position is moved to its limit.
+	 */
+	public static String toHash(ByteBuffer bytes) {
+		Hasher hasher = HASHER.get();
+		hash(bytes, hasher.hex, 0);
+		return new String(hasher.hex, 0, size, StandardCharsets.US_ASCII);
+	}
+
+	// ALLOCATION FREE API ----------------------------------------------
+
+	/**
+	 * Compute the binary SHA-1 digest of the remaining bytes of a buffer.
+	 * 
+	 * @param bytes
+	 *            the message, its position is moved to its limit
+	 * @param out
+	 *            receives {@link #digestSize} bytes
+	 * @param offset
+	 *            where in out to write
+	 */
+	public static void digest(ByteBuffer bytes, byte[] out, int offset) {
+		SHA1.digest(bytes, out, offset);
+	}
+
+	/**
+	 * Hash the remaining bytes of a buffer and write the hex SHA-1 digest.
+	 * 
+	 * @param bytes
+	 *            the message, its position is moved to its limit
+	 * @param out
+	 *            receives {@link #size} ASCII hex characters
+	 * @param offset
+	 *            where in out to write
+	 */
+	public static void hash(ByteBuffer bytes, byte[] out, int offset) {
+		hash(SHA1, bytes, out, offset);
+	}
+
+	/**
+	 * Hash the remaining bytes of a buffer and put the hex SHA-1 digest
+	 * into another buffer, heap or direct.
+	 * 
+	 * @param bytes
+	 *            the message, its position is moved to its limit
+	 * @param out
+	 *            receives {@link #size} ASCII hex characters at its position
+	 */
+	public static void hash(ByteBuffer bytes, ByteBuffer out) {
+		hash(SHA1, bytes, out);
+	}
+
+	/**
+	 * Hash with the given engine and write the hex digest.
+	 * 
+	 * @param out
+	 *            receives {@link DigestEngine#getHexSize()} characters
+	 */
+	public static void hash(DigestEngine engine, ByteBuffer bytes, byte[] out, int offset) {
+		byte[] binary = HASHER.get().binary(engine.getDigestSize());
+		engine.digest(bytes, binary, 0);
+		toHex(binary, 0, engine.getDigestSize(), out, offset);
+	}
+
+	/**
+	 * Hash with the given engine and put the hex digest into a buffer at
+	 * its position.
+	 */
+	public static void hash(DigestEngine engine, ByteBuffer bytes, ByteBuffer out) {
+		byte[] binary = HASHER.get().binary(engine.getDigestSize());
+		engine.digest(bytes, binary, 0);
+		toHex(binary, 0, engine.getDigestSize(), out);
+	}
+
+	/**
+	 * Hash with the given engine and put the binary digest into a buffer
+	 * at its position, as version 2 of the protocol replies.
+	 */
+	public static void digest(DigestEngine engine, ByteBuffer bytes, ByteBuffer out) {
+		byte[] binary = HASHER.get().binary(engine.getDigestSize());
+		engine.digest(bytes, binary, 0);
+		out.put(binary, 0, engine.getDigestSize());
+	}
+
+	/**
+	 * Lower case hex encode a binary SHA-1 digest, zero padded to
+	 * {@link #size}.
+	 */
+	public static void toHex(byte[] digest, int offset, byte[] out, int outOffset) {
+		toHex(digest, offset, digestSize, out, outOffset);
+	}
+
+	/**
+	 * Lower case hex encode length bytes of a binary digest.
+	 */
+	public static void toHex(byte[] digest, int offset, int length, byte[] out, int outOffset) {
+		for (int i = 0; i < length; i++) {
+			int b = digest[offset + i] & 0xff;
+			out[outOffset + 2 * i] = HEX[b >>> 4];
+			out[outOffset + 2 * i + 1] = HEX[b & 0x0f];
+		}
+	}
+
+	/**
+	 * Lower case hex encode a binary SHA-1 digest into a buffer at its
+	 * position.
+	 */
+	public static void toHex(byte[] digest, int offset, ByteBuffer out) {
+		toHex(digest, offset, digestSize, out);
+	}
+
+	/**
+	 * Lower case hex encode length bytes of a binary digest into a buffer
+	 * at its position.
+	 */
+	public static void toHex(byte[] digest, int offset, int length, ByteBuffer out) {
+		for (int i = 0; i < length; i++) {
+			int b = digest[offset + i] & 0xff;
+			out.put(HEX[b >>> 4]);
+			out.put(HEX[b & 0x0f]);
+		}
+	}
+
+	/**
+	 * Decode {@link #size} hex characters, either case, back into a binary
+	 * SHA-1 digest.
+	 *
+	 * @return false if a character is not a hex digit, out is then partly
+	 *         written
+	 */
+	public static boolean fromHex(byte[] hex, int offset, byte[] digest, int outOffset) {
+		return fromHex(hex, offset, digestSize, digest, outOffset);
+	}
+
+	/**
+	 * Decode twice length hex characters back into length digest bytes.
+	 *
+	 * @return false if a character is not a hex digit
+	 */
+	public static boolean fromHex(byte[] hex, int offset, int length, byte[] digest, int outOffset) {
+		for (int i = 0; i < length; i++) {
+			int high = Character.digit(hex[offset + 2 * i], 16);
+			int low = Character.digit(hex[offset + 2 * i + 1], 16);
+			if (high < 0 || low < 0)
+				return false;
+			digest[outOffset + i] = (byte) (high << 4 | low);
+		}
+		return true;
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * One thread's scratch space.
+	 */
+	private static final class Hasher {
+
+		private byte[] binary;
+
+		final byte[] hex;
+
+		Hasher() {
+			this.binary = new byte[maxDigestSize];
+			this.hex = new byte[size];
+		}
+
+		/**
+		 * @return room for a binary digest of the given size, grown if a
+		 *         larger engine was registered since
+		 */
+		byte[] binary(int digestSize) {
+			if (this.binary.length < digestSize)
+				this.binary = new byte[digestSize];
+			return this.binary;
+		}
+
+	}
+
 }
@@ -0,0 +1,82 @@
+package cs455.scaling.msg;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A {@link DigestEngine} backed by a {@link MessageDigest} of the Java
+ * security providers. Every thread keeps its own instance, so hashing
+ * allocates nothing once a thread has hashed its first message.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class JcaDigestEngine implements DigestEngine {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private String name;
+
+	final private byte id;
+
+	final private int digestSize;
+
+	final private ThreadLocal<MessageDigest> digests;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param name
+	 *            the command line name
+	 * @param id
+	 *            the handshake id
+	 * @param algorithm
+	 *            the {@link MessageDigest} algorithm, for example SHA-1
+	 * @param digestSize
+	 *            bytes of digest the algorithm produces
+	 */
+	public JcaDigestEngine(String name, int id, String algorithm, int digestSize) {
+		this.name = name;
+		this.id = (byte) id;
+		this.digestSize = digestSize;
+		this.digests = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public String getName() {
+		return this.name;
+	}
+
+	public byte getId() {
+		return this.id;
+	}
+
+	public int getDigestSize() {
+		return this.digestSize;
+	}
+
+	public void digest(ByteBuffer bytes, byte[] out, int offset) {
+		MessageDigest digest = this.digests.get();
+		digest.update(bytes);
+		try {
+			digest.digest(out, offset, this.digestSize);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public String toString() {
+		return this.name;
+	}
+
+}
@@ -0,0 +1,389 @@
+package cs455.scaling.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.msg.DigestCache;
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Frame;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+
+/**
+ * A thread per connection server. Every client gets its own thread that
+ * does blocking reads of whole frames and blocking writes of their
+ * hashes. The threads are virtual when the runtime offers them
+ * (Thread.ofVirtual, Java 21 and later) and ordinary platform threads
+ * otherwise.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class BlockingServer extends Thread implements HashServer {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Blocking server socket, accepted on this thread.
+	 */
+	final private ServerSocketChannel serverChannel;
+
+	/**
+	 * Makes one thread per accepted client.
+	 */
+	final private ThreadFactory factory;
+
+	/**
+	 * True if the factory makes virtual threads.
+	 */
+	final private boolean virtual;
+
+	/**
+	 * Messages read, hashed and sent by every client thread.
+	 */
+	final private ServerMetrics metrics;
+
+	/**
+	 * The digest clients get unless their handshake names another.
+	 */
+	final private DigestEngine digest;
+
+	/**
+	 * Digests of recently hashed payloads, null when not caching.
+	 */
+	final private DigestCache digestCache;
+
+	/**
+	 * Every client starts with a one byte handshake.
+	 */
+	final private boolean negotiate;
+
+	/**
+	 * Highest protocol version spoken, 2 also takes version 1 clients.
+	 */
+	final private int protocol;
+
+	/**
+	 * Largest version 2 payload.
+	 */
+	final private int maxPayload;
+
+	/**
+	 * Every connected client, so a drain can reach their threads.
+	 */
+	final private Set<SocketChannel> channels;
+
+	/**
+	 * To stop the accept loop.
+	 */
+	private volatile boolean running;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Binds the server socket.
+	 * 
+	 * @param config
+	 *            the port and digest settings
+	 * @throws IOException
+	 *             if the socket cannot be bound
+	 */
+	public BlockingServer(ServerConfig config) throws IOException {
+		String ipAddress = InetAddress.getLocalHost().getHostAddress();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.bind(new InetSocketAddress(ipAddress, config.getPort()), NioServer.BACKLOG);
+		ThreadFactory virtualFactory = virtualThreadFactory();
+		this.virtual = virtualFactory != null;
+		this.factory = this.virtual ? virtualFactory : Thread::new;
+		this.metrics = new ServerMetrics();
+		this.digest = config.getDigest();
+		this.digestCache = config.makeCache();
+		this.negotiate = config.isNegotiate();
+		this.protocol = config.getProtocol();
+		this.maxPayload = config.getMaxPayload();
+		this.channels = ConcurrentHashMap.newKeySet();
+		this.running = false;
+		super.setName(ipAddress + ":" + this.getAddress().getPort());
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) this.serverChannel.socket().getLocalSocketAddress();
+	}
+
+	public String getInfo() {
+		if (this.digestCache != null)
+			return this.metrics.getInfo() + ", " + this.digestCache.getInfo();
+		return this.metrics.getInfo();
+	}
+
+	public String getQueueStatus() {
+		return "[ thread per connection, " + (this.virtual ? "virtual" : "platform") + " threads ]";
+	}
+
+	public void reportLeaks(long olderThan) {}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Accept clients until closed, starting a thread for each.
+	 */
+	public void run() {
+		this.running = true;
+		System.out.println("[ INFO ] Blocking server started " + getName() + " using "
+				+ (this.virtual ? "virtual" : "platform") + " threads");
+		while (this.running) {
+			try {
+				SocketChannel channel = this.serverChannel.accept();
+				this.channels.add(channel);
+				this.metrics.clientConnected();
+				this.factory.newThread(() -> this.serve(channel)).start();
+			} catch (IOException e) {
+				if (this.running)
+					System.err.println("[ ERROR ] " + e.toString());
+				this.running = false;
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting. Client threads end when their client disconnects.
+	 */
+	public void close() {
+		this.running = false;
+		try {
+			this.serverChannel.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Stop accepting, then shut the input of every client so its thread
+	 * answers the frame it has read and ends at its next read. Clients
+	 * still connected at the deadline are closed.
+	 * 
+	 * @param millis
+	 *            how long to wait for the client threads to end
+	 */
+	public void drain(long millis) {
+		this.close();
+		long begin = System.nanoTime();
+		long deadline = begin + millis * 1000000;
+		System.out.println("[ INFO ] Draining " + this.channels.size() + " clients, waiting up to " + millis
+				+ " ms.");
+		long reported = begin;
+		while (true) {
+			// again every time for clients accepted as the socket closed
+			for (SocketChannel channel : this.channels) {
+				try {
+					channel.shutdownInput();
+				} catch (IOException e) {}
+			}
+			long now = System.nanoTime();
+			if (this.channels.isEmpty()) {
+				System.out.println("[ INFO ] Drained in " + (now - begin) / 1000000 + " ms.");
+				return;
+			}
+			if (now - deadline >= 0)
+				break;
+			if (now - reported >= NioServer.DRAIN_REPORT_NANOS) {
+				reported = now;
+				System.out.println("[ INFO ] Draining, " + this.channels.size() + " clients left.");
+			}
+			try {
+				Thread.sleep(NioServer.DRAIN_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		System.err.println("[ ERROR ] Drain deadline passed, closing " + this.channels.size() + " clients.");
+		for (SocketChannel channel : this.channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	/**
+	 * Read a frame, write its hash, repeat until the client goes away.
+	 * The first bytes tell a version 2 hello or a digest handshake from a
+	 * version 1 frame, see {@link Connection#greet()}.
+	 */
+	private void serve(SocketChannel channel) {
+		ByteBuffer frame = ByteBuffer.allocateDirect(Message.size);
+		ByteBuffer reply = ByteBuffer.allocateDirect(Frame.maxReplySize());
+		LongAdder sentCount = this.metrics.register();
+		try {
+			DigestEngine engine = this.cached(this.digest);
+			frame.clear();
+			if (this.protocol > 1 || this.negotiate) {
+				fill(channel, frame, 1);
+				if (this.protocol > 1 && frame.get(0) == Frame.MAGIC_FIRST) {
+					// a version 1 payload may start with the same byte
+					fill(channel, frame, Frame.HELLO);
+					if (Frame.isHello(frame)) {
+						this.serveFramed(channel, this.hello(channel, frame.get(5), reply), reply, sentCount);
+						return;
+					}
+				}
+				if (this.negotiate) {
+					// the first byte was the handshake, as in greet() anything
+					// read after it starts the first frame
+					engine = this.handshake(channel, frame.get(0), reply);
+					consume(frame, 1);
+				}
+			}
+			while (true) {
+				fill(channel, frame, Message.size);
+				frame.flip();
+				this.metrics.countRead(1, Message.size);
+				reply.clear();
+				Hash.hash(engine, frame, reply);
+				reply.flip();
+				this.metrics.countHashed(1);
+				while (reply.hasRemaining())
+					this.metrics.countWrite(channel.write(reply));
+				this.metrics.countSent(sentCount, 1);
+				frame.clear();
+			}
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+			this.channels.remove(channel);
+			this.metrics.unregister(sentCount);
+			this.metrics.clientDisconnected();
+		}
+	}
+
+	/**
+	 * Version 2: read a request, write its id and binary digest, repeat
+	 * until the client goes away.
+	 */
+	private void serveFramed(SocketChannel channel, DigestEngine engine, ByteBuffer reply, LongAdder sentCount)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+		ByteBuffer payload = ByteBuffer.allocateDirect(this.maxPayload);
+		while (true) {
+			header.clear();
+			fill(channel, header, Frame.HEADER);
+			int length = header.getInt(0);
+			if (length < 0 || length > this.maxPayload) {
+				System.err.println("[ ERROR ] Client sent a frame too large, closing it.");
+				return;
+			}
+			payload.clear();
+			fill(channel, payload, length);
+			payload.flip();
+			this.metrics.countRead(1, Frame.HEADER + length);
+			reply.clear();
+			reply.putLong(header.getLong(4));
+			Hash.digest(engine, payload, reply);
+			reply.flip();
+			this.metrics.countHashed(1);
+			while (reply.hasRemaining())
+				this.metrics.countWrite(channel.write(reply));
+			this.metrics.countSent(sentCount, 1);
+		}
+	}
+
+	/**
+	 * Answer a version 1 client's digest handshake with the id of the
+	 * engine that will be used, the default if the id is unknown.
+	 * 
+	 * @param buffer
+	 *            scratch space
+	 * @return the engine for this client
+	 */
+	private DigestEngine handshake(SocketChannel channel, byte id, ByteBuffer buffer) throws IOException {
+		DigestEngine engine = Hash.engine(id);
+		if (engine == null)
+			engine = this.digest;
+		buffer.clear();
+		buffer.put(engine.getId()).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		return this.cached(engine);
+	}
+
+	/**
+	 * Answer a version 2 hello with the digest that will be used and the
+	 * largest payload taken.
+	 * 
+	 * @param id
+	 *            the digest asked for, 0 for the default
+	 * @return the engine for this client
+	 */
+	private DigestEngine hello(SocketChannel channel, byte id, ByteBuffer buffer) throws IOException {
+		DigestEngine engine = id == 0 ? null : Hash.engine(id);
+		if (engine == null)
+			engine = this.digest;
+		buffer.clear();
+		Frame.putHello(buffer, Frame.VERSION, engine.getId(), this.maxPayload);
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		return this.cached(engine);
+	}
+
+	/**
+	 * @return the engine answering through the digest cache if there is
+	 *         one
+	 */
+	private DigestEngine cached(DigestEngine engine) {
+		return this.digestCache == null ? engine : this.digestCache.wrap(engine);
+	}
+
+	/**
+	 * Read until the buffer holds the given number of bytes from its
+	 * start.
+	 */
+	private static void fill(SocketChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		buffer.limit(bytes);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) == -1)
+				throw new EOFException();
+	}
+
+	/**
+	 * Drop bytes from the front of a buffer being filled.
+	 */
+	private static void consume(ByteBuffer buffer, int bytes) {
+		buffer.flip();
+		buffer.position(bytes);
+		buffer.compact();
+	}
+
+	/**
+	 * Thread.ofVirtual().factory() looked up reflectively so the server
+	 * still builds and runs on runtimes without virtual threads.
+	 * 
+	 * @return a virtual thread factory or null
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,641 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Frame;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.task.HashTask;
+import cs455.scaling.task.ReadTask;
+
+/**
+ * The server side state of one client, attached to its
+ * {@link SelectionKey}. It tracks whether a read is in flight and holds
+ * the replies the socket could not take yet. Interest in OP_READ and
+ * OP_WRITE is derived from that state: reading stops while a read task is
+ * running, while too many replies are waiting, while the server is
+ * overloaded or once it is draining, writing is watched only while the
+ * socket has refused part of a write.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class Connection {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private SelectionKey key;
+
+	final private SocketChannel channel;
+
+	final private NioServer server;
+
+	final private TaskManager manager;
+
+	/**
+	 * Replies sent to this client, registered with the server metrics.
+	 */
+	final private LongAdder sentCount;
+
+	/**
+	 * Replies waiting for the socket to become writable, the head may be
+	 * partly written.
+	 */
+	final private ArrayDeque<ByteBuffer> outbound;
+
+	/**
+	 * Bytes read from the client that have not been hashed yet, frames
+	 * are hashed right here. Kept in write mode between reads so a partial
+	 * frame carries over.
+	 */
+	final private ByteBuffer inbound;
+
+	/**
+	 * The read and hash tasks are reused for every read, at most one of
+	 * them is in flight while the read claim is held.
+	 */
+	final private ReadTask readTask;
+
+	final private HashTask hashTask;
+
+	/**
+	 * What this client's frames are hashed with, the server's digest
+	 * until the handshake or hello names another.
+	 */
+	private volatile DigestEngine engine;
+
+	/**
+	 * A version 1 client must open with a one byte digest handshake.
+	 */
+	final private boolean negotiate;
+
+	/**
+	 * Highest protocol version the server speaks.
+	 */
+	final private int protocol;
+
+	/**
+	 * Largest version 2 payload, the accumulation buffer holds one with
+	 * its header.
+	 */
+	final private int maxPayload;
+
+	/**
+	 * The client's first bytes have not been looked at yet. This and
+	 * framed are only touched by the tasks holding the read claim.
+	 */
+	private boolean greeting;
+
+	/**
+	 * The client speaks version 2, requests carry a header.
+	 */
+	private boolean framed;
+
+	/**
+	 * Reading pauses once this many replies are waiting.
+	 */
+	final private int capacity;
+
+	/**
+	 * Reused array of replies handed to one gathering write, its length
+	 * is the most replies written per call.
+	 */
+	final private ByteBuffer[] gather;
+
+	/**
+	 * Holds replies back for a short while so more can share a write,
+	 * null when replies are written as soon as they arrive.
+	 */
+	final private Flusher flusher;
+
+	/**
+	 * When the flusher will write out held back replies.
+	 */
+	private volatile long lingerDeadline;
+
+	/**
+	 * Replies are being held back and the flusher knows about it.
+	 */
+	private boolean lingering;
+
+	/**
+	 * The socket did not take everything on the last write, wait for
+	 * OP_WRITE before trying again.
+	 */
+	private boolean blocked;
+
+	/**
+	 * A read task for this client is queued or running.
+	 */
+	private boolean reading;
+
+	/**
+	 * Reading is paused until the outbound queue drains to half capacity.
+	 */
+	private boolean paused;
+
+	/**
+	 * Reading is paused because too many of this client's tasks are
+	 * queued, until the {@link FairQueue} calls {@link #unthrottle()}.
+	 */
+	private boolean throttled;
+
+	/**
+	 * Reading is paused by the {@link OverloadGuard} to shed load.
+	 */
+	private boolean shed;
+
+	/**
+	 * A read was due but the task queue was full, reading waits until
+	 * the {@link OverloadGuard} sees room again.
+	 */
+	private boolean deferred;
+
+	/**
+	 * The server is shutting down, nothing more is read from this client.
+	 */
+	private boolean draining;
+
+	/**
+	 * The channel has been closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Frames read from this client, written only by the read task holding
+	 * the read claim.
+	 */
+	private volatile long framesRead;
+
+	/**
+	 * framesRead when the {@link OverloadGuard} last looked, only touched
+	 * by the guard.
+	 */
+	private long framesSampled;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param key
+	 *            the client's key, this connection becomes its attachment
+	 * @param server
+	 *            told when the client disconnects
+	 * @param manager
+	 *            owns the reply pool and the metrics
+	 * @param config
+	 *            outbound capacity, read batch and write batching settings
+	 * @param flusher
+	 *            writes out held back replies, null to never hold back
+	 */
+	public Connection(SelectionKey key, NioServer server, TaskManager manager, ServerConfig config,
+			Flusher flusher) {
+		this.key = key;
+		this.channel = (SocketChannel) key.channel();
+		this.server = server;
+		this.manager = manager;
+		this.sentCount = manager.getMetrics().register();
+		this.capacity = config.getOutbound();
+		this.outbound = new ArrayDeque<ByteBuffer>(this.capacity);
+		this.maxPayload = config.getMaxPayload();
+		this.inbound = ByteBuffer.allocateDirect(this.maxPayload + Frame.HEADER);
+		this.gather = new ByteBuffer[config.getWriteBatch()];
+		this.readTask = new ReadTask(key, server);
+		this.hashTask = new HashTask(key);
+		this.flusher = flusher;
+		this.engine = manager.cached(config.getDigest());
+		this.negotiate = config.isNegotiate();
+		this.protocol = config.getProtocol();
+		this.greeting = this.negotiate || this.protocol > 1;
+		this.framed = false;
+		this.lingerDeadline = 0;
+		this.lingering = false;
+		this.blocked = false;
+		this.reading = false;
+		this.paused = false;
+		this.throttled = false;
+		this.shed = false;
+		this.deferred = false;
+		this.draining = false;
+		this.closed = false;
+		this.framesRead = 0;
+		this.framesSampled = 0;
+		key.attach(this);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public SelectionKey getKey() {
+		return this.key;
+	}
+
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * @return the task that reads for this client, queued by the selector
+	 *         thread after a successful {@link #beginRead()}
+	 */
+	public ReadTask getReadTask() {
+		return this.readTask;
+	}
+
+	/**
+	 * @return the task that hashes what was read, only queued by the read
+	 *         task
+	 */
+	public HashTask getHashTask() {
+		return this.hashTask;
+	}
+
+	/**
+	 * Only the read and hash tasks holding the read claim may touch this
+	 * buffer.
+	 * 
+	 * @return the accumulation buffer, in write mode
+	 */
+	public ByteBuffer getInbound() {
+		return this.inbound;
+	}
+
+	/**
+	 * @return the digest this client's frames are hashed with
+	 */
+	public DigestEngine getEngine() {
+		return this.engine;
+	}
+
+	/**
+	 * @return true until the client's first bytes have been looked at
+	 */
+	public boolean isGreeting() {
+		return this.greeting;
+	}
+
+	/**
+	 * @return true if the client speaks version 2
+	 */
+	public boolean isFramed() {
+		return this.framed;
+	}
+
+	public int getMaxPayload() {
+		return this.maxPayload;
+	}
+
+	/**
+	 * Tell from the client's first bytes what it speaks: a version 2
+	 * hello, a one byte digest handshake or a version 1 payload. A hello
+	 * or handshake is answered and dropped from the accumulation buffer.
+	 * Called by the read task holding the read claim.
+	 * 
+	 * @return false if more bytes are needed to tell
+	 */
+	public boolean greet() {
+		int have = this.inbound.position();
+		if (have == 0)
+			return false;
+		byte first = this.inbound.get(0);
+		if (this.protocol > 1 && first == Frame.MAGIC_FIRST) {
+			// a version 1 payload may start with the same byte
+			if (have < Frame.HELLO)
+				return false;
+			if (Frame.isHello(this.inbound)) {
+				byte id = this.inbound.get(5);
+				this.consume(Frame.HELLO);
+				this.hello(id == 0 ? null : Hash.engine(id));
+				return true;
+			}
+		}
+		this.greeting = false;
+		if (this.negotiate) {
+			this.consume(1);
+			this.handshake(Hash.engine(first));
+		}
+		return true;
+	}
+
+	/**
+	 * Settle the digest for a version 1 client and answer its handshake
+	 * with the id of the engine that will be used.
+	 * 
+	 * @param engine
+	 *            the engine the client asked for, null if the server does
+	 *            not know its id and the client gets the default
+	 */
+	private void handshake(DigestEngine engine) {
+		if (engine != null)
+			this.engine = this.manager.cached(engine);
+		ByteBuffer reply = this.manager.getReplyPool().acquire();
+		reply.put(this.engine.getId());
+		reply.flip();
+		this.send(reply);
+	}
+
+	/**
+	 * Switch to version 2 and answer the hello with the digest that will
+	 * be used and the largest payload taken.
+	 * 
+	 * @param engine
+	 *            the engine the client asked for, null for the default
+	 */
+	private void hello(DigestEngine engine) {
+		if (engine != null)
+			this.engine = this.manager.cached(engine);
+		this.greeting = false;
+		this.framed = true;
+		ByteBuffer reply = this.manager.getReplyPool().acquire();
+		Frame.putHello(reply, Frame.VERSION, this.engine.getId(), this.maxPayload);
+		reply.flip();
+		this.send(reply);
+	}
+
+	/**
+	 * Drop bytes from the front of the accumulation buffer.
+	 */
+	private void consume(int bytes) {
+		this.inbound.flip();
+		this.inbound.position(bytes);
+		this.inbound.compact();
+	}
+
+	/**
+	 * Claim the right to read. Called by the selector thread on read
+	 * readiness.
+	 * 
+	 * @return true if the caller should queue a read task
+	 */
+	public synchronized boolean beginRead() {
+		if (this.reading || this.paused || this.throttled || this.shed || this.deferred || this.draining
+				|| this.closed)
+			return false;
+		if (this.manager.throttle(this.key)) {
+			this.throttled = true;
+			this.updateInterest();
+			return false;
+		}
+		this.reading = true;
+		this.updateInterest();
+		return true;
+	}
+
+	/**
+	 * Enough of this client's queued tasks have run, watch for more data.
+	 */
+	public synchronized void unthrottle() {
+		this.throttled = false;
+		this.updateInterest();
+	}
+
+	/**
+	 * The read claimed by {@link #beginRead()} could not be queued. Give
+	 * up the claim and stop watching for data until {@link #undefer()}.
+	 */
+	public synchronized void defer() {
+		this.reading = false;
+		this.deferred = true;
+		this.updateInterest();
+	}
+
+	/**
+	 * The task queue has room again, watch for more data.
+	 */
+	public synchronized void undefer() {
+		this.deferred = false;
+		this.updateInterest();
+	}
+
+	/**
+	 * Stop or start reading from this client to shed load.
+	 */
+	public synchronized void setShed(boolean shed) {
+		this.shed = shed;
+		this.updateInterest();
+	}
+
+	/**
+	 * Stop reading for good. A read already in flight still has its
+	 * frames hashed and answered.
+	 */
+	public synchronized void drain() {
+		this.draining = true;
+		this.updateInterest();
+	}
+
+	/**
+	 * Called by the read task holding the claim.
+	 */
+	public void countRead(int frames) {
+		this.framesRead += frames;
+	}
+
+	/**
+	 * @return frames read since the last call, for the
+	 *         {@link OverloadGuard} only
+	 */
+	long sampleLoad() {
+		long read = this.framesRead;
+		long load = read - this.framesSampled;
+		this.framesSampled = read;
+		return load;
+	}
+
+	/**
+	 * The read task is done, watch for more data.
+	 */
+	public synchronized void endRead() {
+		this.reading = false;
+		this.updateInterest();
+	}
+
+	/**
+	 * Queue replies and write them with as few gathering writes as
+	 * possible. Replies are held back while fewer than a full write batch
+	 * are waiting, for at most the linger interval. The buffers belong to
+	 * the connection afterwards and go back to the reply pool once written.
+	 * 
+	 * @param replies
+	 *            pooled buffers ready to be written
+	 * @param count
+	 *            how many of the replies to send
+	 */
+	public synchronized void send(ByteBuffer[] replies, int count) {
+		if (this.closed) {
+			for (int i = 0; i < count; i++)
+				this.manager.getReplyPool().release(replies[i]);
+			return;
+		}
+		for (int i = 0; i < count; i++)
+			this.outbound.addLast(replies[i]);
+		if (this.outbound.size() >= this.capacity)
+			this.paused = true;
+		if (this.blocked == false) {
+			if (this.flusher == null || this.outbound.size() >= this.gather.length) {
+				this.write();
+			} else if (this.lingering == false) {
+				this.lingering = true;
+				this.flusher.schedule(this);
+			}
+		}
+		this.updateInterest();
+	}
+
+	/**
+	 * Queue a single reply, see {@link #send(ByteBuffer[], int)}.
+	 */
+	public synchronized void send(ByteBuffer reply) {
+		this.gather[0] = reply;
+		this.send(this.gather, 1);
+		this.gather[0] = null;
+	}
+
+	/**
+	 * Write as many queued replies as the socket takes. Called by the
+	 * selector thread on write readiness.
+	 */
+	public synchronized void flush() {
+		this.blocked = false;
+		this.write();
+	}
+
+	/**
+	 * The linger interval is over, write whatever has been held back.
+	 * Called by the {@link Flusher}.
+	 */
+	synchronized void lingerExpired() {
+		this.lingering = false;
+		if (this.blocked == false)
+			this.write();
+	}
+
+	long getLingerDeadline() {
+		return this.lingerDeadline;
+	}
+
+	/**
+	 * Set by the {@link Flusher} before it queues this connection.
+	 */
+	void setLingerDeadline(long deadline) {
+		this.lingerDeadline = deadline;
+	}
+
+	/**
+	 * @return replies waiting to be written
+	 */
+	public synchronized int getPending() {
+		return this.outbound.size();
+	}
+
+	/**
+	 * @return true while reading is paused by a full outbound queue
+	 */
+	public synchronized boolean isPaused() {
+		return this.paused;
+	}
+
+	/**
+	 * @return true while a read task for this client is queued or running
+	 */
+	public synchronized boolean isReading() {
+		return this.reading;
+	}
+
+	public synchronized boolean isShed() {
+		return this.shed;
+	}
+
+	public synchronized boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Close the channel and drop any queued replies. Only the first call
+	 * counts the client as disconnected.
+	 */
+	public synchronized void close() {
+		if (this.closed)
+			return;
+		this.closed = true;
+		ByteBuffer reply;
+		while ((reply = this.outbound.pollFirst()) != null)
+			this.manager.getReplyPool().release(reply);
+		this.key.cancel();
+		try {
+			this.channel.close();
+		} catch (IOException e) {}
+		this.manager.getMetrics().unregister(this.sentCount);
+		this.server.clientDisconnected(this.key);
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	/**
+	 * Gathering write of up to a batch of replies at a time until the
+	 * queue is empty or the socket is full.
+	 */
+	private void write() {
+		if (this.closed)
+			return;
+		try {
+			while (this.outbound.isEmpty() == false) {
+				int n = 0;
+				for (ByteBuffer reply : this.outbound) {
+					this.gather[n++] = reply;
+					if (n == this.gather.length)
+						break;
+				}
+				this.manager.getMetrics().countWrite(this.channel.write(this.gather, 0, n));
+				for (int i = 0; i < n; i++)
+					this.gather[i] = null;
+				int written = 0;
+				while (this.outbound.isEmpty() == false && this.outbound.peekFirst().hasRemaining() == false) {
+					this.manager.getReplyPool().release(this.outbound.pollFirst());
+					written++;
+				}
+				this.manager.getMetrics().countSent(this.sentCount, written);
+				if (written < n) {
+					this.blocked = true;
+					break;
+				}
+			}
+			if (this.paused && this.outbound.size() <= this.capacity / 2)
+				this.paused = false;
+			this.updateInterest();
+		} catch (IOException e) {
+			System.err.println("[ ERROR ] Fail to send.");
+			this.close();
+		}
+	}
+
+	/**
+	 * Recompute the interest set. Adding an operation from a thread other
+	 * than the selector needs a wakeup for it to take effect promptly.
+	 */
+	private void updateInterest() {
+		if (this.key.isValid() == false)
+			return;
+		int ops = 0;
+		if (this.reading == false && this.paused == false && this.throttled == false && this.shed == false
+				&& this.deferred == false && this.draining == false)
+			ops |= SelectionKey.OP_READ;
+		if (this.blocked)
+			ops |= SelectionKey.OP_WRITE;
+		try {
+			int current = this.key.interestOps();
+			if (current == ops)
+				return;
+			this.key.interestOps(ops);
+			if ((ops & ~current) != 0)
+				this.key.selector().wakeup();
+		} catch (CancelledKeyException e) {}
+	}
+
+}
@@ -0,0 +1,91 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes out replies that were held back so more could join the same
+ * gathering write. Every connection lingers for the same interval, so
+ * the queue is already ordered by deadline and only its head needs to be
+ * watched.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class Flusher extends Thread {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Connections holding replies back, oldest first.
+	 */
+	final private ConcurrentLinkedQueue<Connection> lingering;
+
+	/**
+	 * How long a reply may be held back in nanoseconds.
+	 */
+	final private long lingerNanos;
+
+	/**
+	 * To stop the run loop.
+	 */
+	private volatile boolean running;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param lingerMicros
+	 *            how long a reply may be held back
+	 */
+	public Flusher(long lingerMicros) {
+		this.lingering = new ConcurrentLinkedQueue<Connection>();
+		this.lingerNanos = lingerMicros * 1000;
+		this.running = true;
+		super.setName("Flusher-" + super.getId());
+		super.setDaemon(true);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Flush the connection once the linger interval has passed. The
+	 * deadline is stored on the connection before it is queued, so this
+	 * thread never sees it queued with an old deadline.
+	 * 
+	 * @param connection
+	 *            a connection that just started holding replies back
+	 */
+	public void schedule(Connection connection) {
+		connection.setLingerDeadline(System.nanoTime() + this.lingerNanos);
+		boolean wasEmpty = this.lingering.isEmpty();
+		this.lingering.add(connection);
+		if (wasEmpty)
+			LockSupport.unpark(this);
+	}
+
+	public void close() {
+		this.running = false;
+		LockSupport.unpark(this);
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	public void run() {
+		while (this.running) {
+			Connection head = this.lingering.peek();
+			if (head == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			long wait = head.getLingerDeadline() - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			this.lingering.poll();
+			head.lingerExpired();
+		}
+	}
+
+}
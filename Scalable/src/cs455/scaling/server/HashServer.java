@@ -0,0 +1,65 @@
+package cs455.scaling.server;
+
+import java.net.InetSocketAddress;
+
+/**
+ * What the {@link Server} needs from a server implementation, so the NIO
+ * and thread per connection designs can be swapped from the command
+ * line.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public interface HashServer {
+
+	/**
+	 * Start accepting clients.
+	 */
+	public void start();
+
+	/**
+	 * Stop the server.
+	 */
+	public void close();
+
+	/**
+	 * Stop accepting and reading, give what was already read the given
+	 * time to be hashed and answered, then close.
+	 *
+	 * @param millis
+	 *            how long to wait for in flight work before closing
+	 */
+	public void drain(long millis);
+
+	/**
+	 * @return false once the server has stopped
+	 */
+	public boolean isAlive();
+
+	/**
+	 * @return the address the server is listening on, with the real port
+	 *         when it was started on port 0
+	 */
+	public InetSocketAddress getAddress();
+
+	/**
+	 * @return the one line summary printed every interval, resets the
+	 *         throughput counter
+	 */
+	public String getInfo();
+
+	/**
+	 * @return extra detail printed every interval in debug mode
+	 */
+	public String getQueueStatus();
+
+	/**
+	 * Report buffers that were borrowed and never returned.
+	 * 
+	 * @param olderThan
+	 *            minimum age in milliseconds
+	 */
+	public void reportLeaks(long olderThan);
+
+}
@@ -5,11 +5,30 @@ import java.net.*;
 import java.nio.channels.*;
 import java.nio.channels.spi.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import cs455.scaling.task.*;
 import cs455.scaling.util.*;
 
-public class NioServer extends Thread {
+public class NioServer extends Thread implements HashServer {
+	// CLASS VARIABLES ************************************************
+
+	/**
+	 * Pending connections the OS queues before refusing. The default of 50
+	 * makes a burst of thousands of clients fall back on SYN retries.
+	 */
+	final static int BACKLOG = 1024;
+
+	/**
+	 * How often a drain looks whether the pipeline is empty.
+	 */
+	final static long DRAIN_POLL_MILLIS = 10;
+
+	/**
+	 * How often a drain reports its progress.
+	 */
+	final static long DRAIN_REPORT_NANOS = 1000000000L;
+
 	// INSTANCE VARIABLES *********************************************
 
 	/**
@@ -17,6 +36,12 @@ public class NioServer extends Thread {
 	 */
 	private ServerSocketChannel serverChannel = null;
 
+	/**
+	 * The server socket's key, its interest is cleared while accepting is
+	 * paused.
+	 */
+	private SelectionKey acceptKey;
+
 	/**
 	 * The port number
 	 */
@@ -34,14 +59,58 @@ public class NioServer extends Thread {
 	private Selector selector;
 	
 	/**
-	 * 
+	 * Selector threads that own the client connections. Empty when this
+	 * thread both accepts and reads.
+	 */
+	private SubReactor[] reactors;
+
+	/**
+	 * Round robin cursor over the reactors.
+	 */
+	private int nextReactor;
+
+	/**
+	 * True to place new connections on the reactor with the fewest
+	 * clients instead of round robin.
+	 */
+	private boolean leastLoaded;
+
+	/**
+	 * Per connection settings such as outbound capacity and batching.
 	 */
-	private Integer clientCount;
+	private ServerConfig config;
+
+	/**
+	 * Writes out replies held back for batching, null when -linger is 0.
+	 */
+	private Flusher flusher;
+
+	/**
+	 * Defers reads that do not fit in the queue, limits connections and
+	 * sheds load.
+	 */
+	private OverloadGuard guard;
+
+	/**
+	 * Every registered connection, for the guard to pick from.
+	 */
+	private Set<Connection> connections;
 	
 	/**
 	 * To stop the run loop.
 	 */
-	private boolean running;
+	private volatile boolean running;
+
+	/**
+	 * Set once a drain has begun, connections registered after that are
+	 * never read from.
+	 */
+	private volatile boolean draining;
+
+	/**
+	 * Set by the first {@link #close()}.
+	 */
+	private boolean closed;
 
 	// CONSTRUCTOR ******************************************************
 
@@ -53,7 +122,18 @@ public class NioServer extends Thread {
 	 * @throws IOException 
 	 */
 	public NioServer(int port, int poolSize) throws IOException {
-		this.port = port;
+		this(configFor(port, poolSize));
+	}
+
+	/**
+	 * Constructs a new server from the parsed command line.
+	 *
+	 * @param config
+	 *            the port, pool and queue settings.
+	 * @throws IOException 
+	 */
+	public NioServer(ServerConfig config) throws IOException {
+		this.port = config.getPort();
 		
 		// Selector: multiplexor of SelectableChannel objects
 		this.selector = SelectorProvider.provider().openSelector();
@@ -64,41 +144,136 @@ public class NioServer extends Thread {
 		 
 		// Binds the channel's socket to a local address and configures the socket to listen for connections
 		String ipAddress = InetAddress.getLocalHost().getHostAddress();
-		this.serverChannel.bind(new InetSocketAddress(ipAddress, port));
+		this.serverChannel.bind(new InetSocketAddress(ipAddress, port), BACKLOG);
+		this.port = this.getAddress().getPort();
 		 
 		// Adjusts this channel's blocking mode.
 		this.serverChannel.configureBlocking(false);
-		serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+		this.acceptKey = serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
 		
-		this.manager = new TaskManager(poolSize, 10000);
+		this.manager = new TaskManager(config);
 		this.manager.start();
+
+		this.reactors = new SubReactor[config.getReactors()];
+		for (int i = 0; i < this.reactors.length; i++) {
+			this.reactors[i] = new SubReactor(this, i);
+			this.reactors[i].start();
+		}
+		this.nextReactor = 0;
+		this.leastLoaded = config.getBalance().equals("least-loaded");
+		this.config = config;
+		this.flusher = null;
+		if (config.getLinger() > 0) {
+			this.flusher = new Flusher(config.getLinger());
+			this.flusher.start();
+		}
+		this.connections = ConcurrentHashMap.newKeySet();
+		this.guard = new OverloadGuard(this, this.manager, config);
+		this.guard.start();
 		
 		this.running = false;
+		this.draining = false;
+		this.closed = false;
 		super.setName(ipAddress + ":" + this.port);
-		this.clientCount = 0;
 	}
 	
 	/**
-	 * Closes the server socket and the connections with all clients. Any
-	 * exception thrown while closing a client is ignored. If the server is
-	 * already closed, this call has no effect.
-	 *
-	 * @exception IOException
-	 *                if an I/O error occurs while closing the server socket.
+	 * Closes the server socket and the connections with all clients and
+	 * stops every thread the server started. Replies not written yet are
+	 * dropped, see {@link #drain(long)}. Any exception thrown while
+	 * closing a client is ignored. If the server is already closed, this
+	 * call has no effect.
 	 */
 	final public void close() {
-		if (this.serverChannel == null)
-			return;
+		synchronized (this) {
+			if (this.closed)
+				return;
+			this.closed = true;
+		}
+		this.running = false;
 		try {
 			this.serverChannel.close();
+			for (Connection connection : this.getConnections())
+				connection.close();
 			this.selector.close();
 		} catch (IOException ex) {
 			System.err.println(ex.toString());
 		} finally {
+			for (SubReactor reactor : this.reactors)
+				reactor.close();
+			if (this.flusher != null)
+				this.flusher.close();
+			this.guard.interrupt();
 			this.manager.close();
 			this.serverClosed();
 		}
-		System.exit(0);
+	}
+
+	/**
+	 * Shut down without dropping work already read. Accepting and reading
+	 * stop first, then the queued and running tasks are given until the
+	 * deadline to finish and the replies they made to be written, the
+	 * selector threads still flushing clients whose sockets were full.
+	 * Progress is reported every second and whatever is left at the
+	 * deadline is dropped by {@link #close()}. Called from a thread other
+	 * than the server's own, such as a shutdown hook.
+	 * 
+	 * @param millis
+	 *            how long to wait for in flight work before closing
+	 */
+	public void drain(long millis) {
+		synchronized (this) {
+			if (this.draining || this.closed)
+				return;
+			this.draining = true;
+		}
+		long begin = System.nanoTime();
+		long deadline = begin + millis * 1000000;
+		this.acceptKey.cancel();
+		try {
+			this.serverChannel.close();
+		} catch (IOException e) {}
+		this.selector.wakeup();
+		for (Connection connection : this.getConnections())
+			connection.drain();
+		System.out.println("[ INFO ] Draining " + this.getClientCount() + " clients, waiting up to " + millis
+				+ " ms.");
+
+		long reported = begin;
+		while (true) {
+			int reading = 0, waiting = 0, replies = 0;
+			for (Connection connection : this.getConnections()) {
+				if (connection.isReading())
+					reading++;
+				int pending = connection.getPending();
+				if (pending > 0) {
+					waiting++;
+					replies += pending;
+				}
+			}
+			long tasks = this.manager.getUnfinished();
+			long now = System.nanoTime();
+			String progress = tasks + " tasks, " + reading + " reads, " + replies + " replies to " + waiting
+					+ " clients";
+			if (tasks == 0 && reading == 0 && replies == 0) {
+				System.out.println("[ INFO ] Drained in " + (now - begin) / 1000000 + " ms.");
+				break;
+			}
+			if (now - deadline >= 0) {
+				System.err.println("[ ERROR ] Drain deadline passed, dropping " + progress + ".");
+				break;
+			}
+			if (now - reported >= DRAIN_REPORT_NANOS) {
+				reported = now;
+				System.out.println("[ INFO ] Draining, " + progress + " left.");
+			}
+			try {
+				Thread.sleep(DRAIN_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		this.close();
 	}
 
 	// ACCESSING METHODS ------------------------------------------------
@@ -112,11 +287,40 @@ public class NioServer extends Thread {
 		return port;
 	}
 
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) this.serverChannel.socket().getLocalSocketAddress();
+	}
+
+
+	/**
+	 * @return clients accepted and not yet disconnected
+	 */
+	final public int getClientCount() {
+		return this.manager.getMetrics().getClientCount();
+	}
+
+	/**
+	 * @return a snapshot of the registered connections
+	 */
+	ArrayList<Connection> getConnections() {
+		return new ArrayList<Connection>(this.connections);
+	}
 
 	final public String getQueueStatus() {
 		return manager.getInfo();
 	}
 
+	/**
+	 * Report pooled buffers that were borrowed and never returned. Only
+	 * does anything when the server was started with -debug true.
+	 *
+	 * @param olderThan
+	 *            minimum age in milliseconds
+	 */
+	final public void reportLeaks(long olderThan) {
+		manager.getReplyPool().reportLeaks(olderThan);
+	}
+
 	// RUN METHOD -------------------------------------------------------
 
 	/**
@@ -134,13 +338,16 @@ public class NioServer extends Thread {
 				while(keyIterator.hasNext()) {
 				    SelectionKey key = keyIterator.next();
 				    keyIterator.remove();
-				    if (key.isValid() == false) {
-				    	continue;
-				    } else if(key.isAcceptable()) {
-				        this.accept(key);
-				    } else if (key.isReadable() && key.attachment() == null) {
-				    	key.attach(new Object());
-				    	this.manager.enqueueTask(new ReadTask(key, this));
+				    try {
+				    	if (key.isValid() == false) {
+				    		continue;
+				    	} else if(key.isAcceptable()) {
+				    		this.accept(key);
+				    	} else {
+				    		this.ready(key);
+				    	}
+				    } catch (CancelledKeyException e) {
+				    	// a worker closed the client after it was selected
 				    }
 				}
 			}
@@ -153,7 +360,62 @@ public class NioServer extends Thread {
 		
 	}
 	
+	/**
+	 * Called by whichever selector thread owns the key when the client is
+	 * readable or writable. Waiting replies are flushed first, then a read
+	 * is queued unless one is already in flight for this connection. The
+	 * selector never waits for room in the queue, a read that does not fit
+	 * is deferred until the queue drains. Workers may cancel the key at
+	 * any time, callers catch the {@link CancelledKeyException} that a
+	 * cancel between the checks leads to.
+	 * 
+	 * @param key
+	 *            a selected client key
+	 */
+	void ready(SelectionKey key) {
+		if (key.isValid() == false)
+			return;
+		Connection connection = (Connection) key.attachment();
+		if (key.isWritable())
+			connection.flush();
+		if (key.isValid() && key.isReadable() && connection.beginRead()
+				&& this.manager.offerTask(connection.getReadTask()) == false)
+			this.guard.defer(connection);
+	}
+
+	/**
+	 * Watch for new connections again after a pause. Called by the
+	 * {@link OverloadGuard}.
+	 */
+	void resumeAccept() {
+		if (this.acceptKey.isValid() == false)
+			return;
+		this.acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+		this.selector.wakeup();
+		System.out.println("[ INFO ] Accepting connections again.");
+	}
+
+	/**
+	 * Wrap a newly registered client key in its {@link Connection}.
+	 * 
+	 * @param key
+	 *            the key returned by register
+	 */
+	void connectionRegistered(SelectionKey key) {
+		Connection connection = new Connection(key, this, this.manager, this.config, this.flusher);
+		this.connections.add(connection);
+		if (this.draining)
+			connection.drain();
+	}
+
 	// PRIVATE METHODS -----------------------------------
+
+	private static ServerConfig configFor(int port, int poolSize) {
+		ServerConfig config = new ServerConfig();
+		config.setPort(port);
+		config.setPoolSize(poolSize);
+		return config;
+	}
 	
 	private void accept(SelectionKey key) {
 		this.serverChannel = (ServerSocketChannel) key.channel();
@@ -161,12 +423,63 @@ public class NioServer extends Thread {
 		SocketChannel socketChannel = null;
 		try {
 			socketChannel = serverChannel.accept();
+			if (socketChannel == null)
+				return;
 			socketChannel.configureBlocking(false);
-			socketChannel.register(key.selector(), SelectionKey.OP_READ);
+			if (this.reactors.length == 0)
+				this.connectionRegistered(socketChannel.register(key.selector(), SelectionKey.OP_READ));
+			else
+				this.handOff(socketChannel);
 		} catch (IOException e) {
-			e.printStackTrace();
+			// most likely out of file descriptors, the backlog holds new
+			// clients until accepting resumes
+			this.acceptKey.interestOps(0);
+			System.err.println("[ ERROR ] Accept failed, retrying in " + this.guard.acceptFailed() + " ms. "
+					+ e.toString());
+			return;
 		}
+		this.guard.acceptSucceeded();
 		this.clientConnected();
+		if (this.guard.atLimit(this.getClientCount())) {
+			this.acceptKey.interestOps(0);
+			this.guard.acceptPaused();
+			System.out.println("[ INFO ] " + this.getClientCount() + " clients connected, not accepting more.");
+		}
+	}
+
+	/**
+	 * Give an accepted channel to a running reactor.
+	 * 
+	 * @throws IOException
+	 *             if every reactor has stopped, the channel is closed
+	 */
+	private void handOff(SocketChannel socketChannel) throws IOException {
+		SubReactor reactor;
+		while ((reactor = this.pickReactor()) != null)
+			if (reactor.register(socketChannel))
+				return;
+		socketChannel.close();
+		throw new IOException("No reactor is running.");
+	}
+
+	/**
+	 * @return a running reactor, null if none is left
+	 */
+	private SubReactor pickReactor() {
+		if (this.leastLoaded == false) {
+			for (int i = 0; i < this.reactors.length; i++) {
+				SubReactor reactor = this.reactors[this.nextReactor];
+				this.nextReactor = (this.nextReactor + 1) % this.reactors.length;
+				if (reactor.isRunning())
+					return reactor;
+			}
+			return null;
+		}
+		SubReactor best = null;
+		for (SubReactor reactor : this.reactors)
+			if (reactor.isRunning() && (best == null || reactor.getClientCount() < best.getClientCount()))
+				best = reactor;
+		return best;
 	}
 
 	// METHODS --------------------------------------------
@@ -182,24 +495,35 @@ public class NioServer extends Thread {
 	}
 	
 	public String getInfo() {
-		String info = "Current Server Throughput: "+this.manager.getSent()+" messages";
-		synchronized (this.clientCount) {
-			info +=  ", Active Client Connections: "+this.clientCount;
-		}
+		String info = this.manager.getMetrics().getInfo();
+		info += ", Queued Tasks: "+this.manager.getQueued();
+		long steals = this.manager.getSteals();
+		if (steals >= 0)
+			info += ", Steals: "+steals;
+		info += ", Shed Clients: "+this.guard.getShedCount();
+		if (this.manager.getDigestCache() != null)
+			info += ", "+this.manager.getDigestCache().getInfo();
 		return info;	
 	}
 	
-	public void clientDisconnected() {
-		synchronized (this.clientCount) {
-			this.clientCount--;	
-		}
+	/**
+	 * @param key
+	 *            the key of the lost connection, or null if it was never
+	 *            registered
+	 */
+	public void clientDisconnected(SelectionKey key) {
+		if (key != null && key.attachment() instanceof Connection)
+			this.connections.remove(key.attachment());
+		if (key != null)
+			for (SubReactor reactor : this.reactors)
+				if (reactor.owns(key))
+					reactor.clientDisconnected();
+		this.manager.getMetrics().clientDisconnected();
 		System.err.println("[ INFO ] A client has disconnected.");
 	}
 	
 	public void clientConnected() {
-		synchronized (this.clientCount) {
-			this.clientCount++;	
-		}
+		this.manager.getMetrics().clientConnected();
 		System.out.println("[ INFO ] A new client has connected.");
 	}
 	
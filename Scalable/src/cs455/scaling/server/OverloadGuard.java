@@ -0,0 +1,267 @@
+package cs455.scaling.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the {@link NioServer} responsive when offered more than it can
+ * take. Three things are watched:
+ * <ul>
+ * <li>Reads the selector could not queue because the task queue was full
+ * wait here and are let go once the queue has drained to half.</li>
+ * <li>Accepting pauses while the server is at its connection limit or
+ * after accept failed, for example for lack of file descriptors, and
+ * resumes when a client leaves or the backoff runs out.</li>
+ * <li>Every tenth of a second the mean queue wait is sampled. While it is
+ * over the shed threshold the clients that sent the most since the last
+ * sample stop being read from, a few more each sample. Once the wait is
+ * under half the threshold, and nothing was shed for a second, they are
+ * read from again a few at a time, last shed first.</li>
+ * </ul>
+ * Every shedding decision is logged.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class OverloadGuard extends Thread {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static long TICK_MILLIS = 10;
+
+	/**
+	 * Ticks between shedding decisions.
+	 */
+	final private static int SAMPLE_TICKS = 10;
+
+	/**
+	 * Nanoseconds after the last shed before clients are read from again.
+	 */
+	final private static long RESUME_HOLD = 1000000000L;
+
+	/**
+	 * Backoff after a failed accept, doubled up to the maximum while
+	 * accepting keeps failing.
+	 */
+	final private static long MIN_BACKOFF = 10000000L;
+
+	final private static long MAX_BACKOFF = 1000000000L;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private NioServer server;
+
+	final private TaskManager manager;
+
+	/**
+	 * Mean queue wait in microseconds that starts shedding, 0 for never.
+	 */
+	final private long shedWait;
+
+	/**
+	 * Most connected clients, 0 for no limit.
+	 */
+	final private int maxConnections;
+
+	/**
+	 * Connections whose read did not fit in the queue.
+	 */
+	final private ConcurrentLinkedQueue<Connection> deferred;
+
+	/**
+	 * Connections not being read from, the last shed at the head. Only
+	 * touched by this thread.
+	 */
+	final private ArrayDeque<Connection> shed;
+
+	/**
+	 * Size of the shed list, for other threads.
+	 */
+	private volatile int shedCount;
+
+	/**
+	 * When accepting may resume in {@link System#nanoTime()} terms, and
+	 * the backoff the next failure waits.
+	 */
+	private volatile long acceptAt;
+
+	private long backoff;
+
+	private volatile boolean acceptPaused;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param server
+	 *            its connections are shed and its accepting paused
+	 * @param manager
+	 *            samples queue wait and depth
+	 * @param config
+	 *            the shed threshold and connection limit
+	 */
+	public OverloadGuard(NioServer server, TaskManager manager, ServerConfig config) {
+		super("OverloadGuard");
+		this.server = server;
+		this.manager = manager;
+		this.shedWait = config.getShedWait();
+		this.maxConnections = config.getMaxConnections();
+		this.deferred = new ConcurrentLinkedQueue<Connection>();
+		this.shed = new ArrayDeque<Connection>();
+		this.shedCount = 0;
+		this.acceptAt = 0;
+		this.backoff = MIN_BACKOFF;
+		this.acceptPaused = false;
+		setDaemon(true);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * A read was refused by the full queue. Called on a selector thread.
+	 */
+	public void defer(Connection connection) {
+		connection.defer();
+		this.deferred.add(connection);
+	}
+
+	/**
+	 * Called by the accepting thread after each accept.
+	 *
+	 * @return true if accepting should pause for the connection limit
+	 */
+	public boolean atLimit(int connected) {
+		return this.maxConnections > 0 && connected >= this.maxConnections;
+	}
+
+	/**
+	 * The accepting thread stopped watching for connections, resume it
+	 * once there is room. Called after the interest was cleared so a
+	 * resume can never be overtaken by the pause.
+	 */
+	public void acceptPaused() {
+		this.acceptPaused = true;
+	}
+
+	/**
+	 * Accept failed and was paused, resume it after a backoff that
+	 * doubles while it keeps failing. Called by the accepting thread.
+	 *
+	 * @return the backoff in milliseconds
+	 */
+	public long acceptFailed() {
+		long wait = this.backoff;
+		this.backoff = Math.min(MAX_BACKOFF, this.backoff * 2);
+		this.acceptAt = System.nanoTime() + wait;
+		this.acceptPaused = true;
+		return wait / 1000000;
+	}
+
+	/**
+	 * Accept worked, the next failure starts from the smallest backoff.
+	 */
+	public void acceptSucceeded() {
+		this.backoff = MIN_BACKOFF;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return clients not being read from to shed load
+	 */
+	public int getShedCount() {
+		return this.shedCount;
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	public void run() {
+		int tick = 0;
+		long lastShed = 0;
+		while (this.isInterrupted() == false) {
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			this.releaseDeferred();
+			if (this.acceptPaused && now - this.acceptAt >= 0
+					&& (this.maxConnections == 0 || this.server.getClientCount() < this.maxConnections)) {
+				this.acceptPaused = false;
+				this.server.resumeAccept();
+			}
+			if (++tick < SAMPLE_TICKS)
+				continue;
+			tick = 0;
+
+			ArrayList<Connection> connections = this.server.getConnections();
+			long[] load = new long[connections.size()];
+			for (int i = 0; i < load.length; i++)
+				load[i] = connections.get(i).sampleLoad();
+			long wait = this.manager.takeRecentWait() / 1000;
+			if (this.shedWait == 0)
+				continue;
+			this.forgetClosed();
+			if (wait > this.shedWait) {
+				int count = this.shedHeaviest(connections, load);
+				this.shedCount = this.shed.size();
+				if (count > 0) {
+					lastShed = now;
+					this.log("Shedding " + count + " clients", wait);
+				}
+			} else if (wait < this.shedWait / 2 && this.shed.isEmpty() == false && now - lastShed >= RESUME_HOLD) {
+				int count = Math.max(1, this.shed.size() / 4);
+				for (int i = 0; i < count; i++)
+					this.shed.pollFirst().setShed(false);
+				this.shedCount = this.shed.size();
+				this.log("Resuming " + count + " clients", wait);
+			}
+		}
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * Let deferred reads go once the queue is down to half its capacity.
+	 */
+	private void releaseDeferred() {
+		if (this.deferred.isEmpty() || this.manager.getQueued() > this.manager.getCapacity() / 2)
+			return;
+		Connection connection;
+		while ((connection = this.deferred.poll()) != null)
+			connection.undefer();
+	}
+
+	/**
+	 * Stop reading from the busiest eighth of the clients still being
+	 * read from, at least one, skipping any that sent nothing.
+	 *
+	 * @return how many were shed
+	 */
+	private int shedHeaviest(ArrayList<Connection> connections, long[] load) {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < load.length; i++)
+			if (load[i] > 0 && connections.get(i).isShed() == false)
+				order.add(i);
+		order.sort((a, b) -> Long.compare(load[b], load[a]));
+		int count = Math.min(order.size(), Math.max(1, (connections.size() - this.shed.size()) / 8));
+		for (int i = 0; i < count; i++) {
+			Connection connection = connections.get(order.get(i));
+			connection.setShed(true);
+			this.shed.addFirst(connection);
+		}
+		return count;
+	}
+
+	private void forgetClosed() {
+		if (this.shed.removeIf(Connection::isClosed))
+			this.shedCount = this.shed.size();
+	}
+
+	private void log(String decision, long wait) {
+		System.out.printf("[ INFO ] %s: queue wait %d us, %d shed%n", decision, wait, this.shed.size());
+	}
+
+}
@@ -0,0 +1,126 @@
+package cs455.scaling.server;
+
+import cs455.scaling.util.ThreadPool;
+
+/**
+ * Resizes the {@link ThreadPool} between the configured bounds. Once a
+ * second it samples how long tasks waited for a processor and how busy
+ * the processors were. The pool grows when tasks wait longer than the
+ * target while the processors are busy, and shrinks when the processors
+ * are mostly idle and tasks barely wait. When growing did not cut the
+ * wait, for example because the host is out of cores, the controller
+ * holds the size for a while instead of adding more threads. Every
+ * decision is logged.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class PoolController extends Thread {
+
+	// CLASS VARIABLES **************************************************
+
+	final private static long PERIOD_MILLIS = 1000;
+
+	/**
+	 * Grow only while processors are busier than this.
+	 */
+	final private static double GROW_UTILIZATION = 0.75;
+
+	/**
+	 * Shrink only while processors are less busy than this.
+	 */
+	final private static double SHRINK_UTILIZATION = 0.25;
+
+	/**
+	 * Periods to wait before growing again after a grow that did not cut
+	 * the wait by at least a tenth.
+	 */
+	final private static int HOLD_PERIODS = 10;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private TaskManager manager;
+
+	final private ThreadPool pool;
+
+	final private int min;
+
+	final private int max;
+
+	/**
+	 * Tolerated mean queue wait in microseconds.
+	 */
+	final private long target;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param manager
+	 *            samples queue wait and processor busy time
+	 * @param pool
+	 *            the pool to resize
+	 * @param config
+	 *            the pool bounds and target queue wait
+	 */
+	public PoolController(TaskManager manager, ThreadPool pool, ServerConfig config) {
+		super("PoolController");
+		this.manager = manager;
+		this.pool = pool;
+		this.min = config.getPoolMin();
+		this.max = config.getPoolMax();
+		this.target = config.getPoolTarget();
+		setDaemon(true);
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	public void run() {
+		System.out.println("[ INFO ] Pool size " + this.pool.getSize() + ", adapting between " + this.min + " and "
+				+ this.max + " for a queue wait under " + this.target + " us");
+		long last = System.nanoTime();
+		boolean grew = false;
+		long lastWait = 0;
+		int hold = 0;
+		while (this.isInterrupted() == false) {
+			try {
+				Thread.sleep(PERIOD_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			int size = this.pool.getSize();
+			double utilization = this.manager.takeBusyNanos() / (double) ((now - last) * size);
+			long wait = this.manager.takeMeanWait() / 1000;
+			last = now;
+
+			if (hold > 0)
+				hold--;
+			if (grew && wait > lastWait * 0.9) {
+				hold = HOLD_PERIODS;
+				this.log("holding at " + size + ", growing did not cut the wait", wait, utilization);
+			}
+			grew = false;
+
+			if (wait > this.target && utilization > GROW_UTILIZATION && size < this.max && hold == 0) {
+				int step = Math.min(Math.max(1, size / 4), this.max - size);
+				this.pool.grow(step);
+				grew = true;
+				this.log(size + " -> " + (size + step) + " threads", wait, utilization);
+			} else if (wait < this.target / 4 && utilization < SHRINK_UTILIZATION && size > this.min) {
+				int retired = this.pool.shrink(1);
+				if (retired > 0)
+					this.log(size + " -> " + (size - retired) + " threads", wait, utilization);
+			}
+			lastWait = wait;
+		}
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	private void log(String decision, long wait, double utilization) {
+		System.out.printf("[ INFO ] Pool %s: queue wait %d us, utilization %.0f%%%n", decision, wait,
+				utilization * 100);
+	}
+
+}
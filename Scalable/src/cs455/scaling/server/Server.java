@@ -15,11 +15,21 @@ public class Server {
 	
 	// Class variables *************************************************
 
-	final public boolean debug = false;
+	final public boolean debug;
+
+	/**
+	 * A pooled buffer held longer than this many milliseconds is reported.
+	 */
+	final private static long LEAK_AGE = 10000;
+
+	/**
+	 * Milliseconds a shutdown waits for in flight work.
+	 */
+	final private long drain;
 
 	// Instance variables **********************************************
 
-	private NioServer server;
+	private HashServer server;
 
 	// Constructors ****************************************************
 
@@ -30,20 +40,36 @@ public class Server {
 	 * 		The server for the nodes to connect to.
 	 */
 
-	public Server(NioServer server) {
+	public Server(HashServer server) {
+		this(server, false, new ServerConfig().getDrain());
+	}
+
+	/**
+	 * @param server
+	 * 		The server for the nodes to connect to.
+	 * @param debug
+	 * 		Print the queue status and buffer leaks every interval.
+	 * @param drain
+	 * 		Milliseconds a shutdown waits for in flight work.
+	 */
+	public Server(HashServer server, boolean debug, long drain) {
 		this.server = server;
+		this.debug = debug;
+		this.drain = drain;
 	}
 
 	// Instance methods ************************************************
 	
 	public void exec() {
 		DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-		while (true) {
+		while (this.server.isAlive()) {
 			Date current = new Date();
 			System.out.println("[ "+dateFormat.format(current)+" ] "+this.server.getInfo());
 			// [timestamp] Total Sent Count: x, Total Received Count: y 
-			if (debug)
+			if (debug) {
 				System.out.println(this.server.getQueueStatus());
+				this.server.reportLeaks(LEAK_AGE);
+			}
 			try {
 				Thread.sleep(5000);
 			} catch (InterruptedException e) {}
@@ -51,44 +77,31 @@ public class Server {
 	}
 	
 	/**
-	 * It closes the server.
+	 * It drains the server, then closes it.
 	 */
-	public void shutdown() throws IOException {
-		server.interrupt();
+	public void shutdown() {
+		server.drain(this.drain);
 	}
 
 	public static void main(String [] args) {
-		int port = 0;
-		try {
-			port = Integer.parseInt(args[0]);
-		} catch (NumberFormatException ex) {
-			System.err.println("Error: Port argument must be a number.");
-			System.exit(1);
-		} catch (ArrayIndexOutOfBoundsException ex) {
-			port = 60100;
-		}
-		
-		int poolSize = 0;
-		try {
-			poolSize = Integer.parseInt(args[1]);
-		} catch (NumberFormatException ex) {
-			System.err.println("Error: Thread pool size argument must be a number.");
-			System.exit(1);
-		} catch (ArrayIndexOutOfBoundsException ex) {
-			poolSize = 16;
-		}
+		ServerConfig config = ServerConfig.parse(args);
 		
-		NioServer server = null;
+		HashServer server = null;
 		
 		try {
-			server = new NioServer(port, poolSize);
+			if (config.getMode().equals("threads"))
+				server = new BlockingServer(config);
+			else
+				server = new NioServer(config);
 			server.start();
 		} catch (IOException ex) {
 			System.err.println("[ ERROR ] Could not setup server.");
 			System.exit(1);
 		}
 		
-		Server r = new Server(server);
+		Server r = new Server(server, config.isDebug(), config.getDrain());
+		// a plain kill lets in flight work finish before the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(r::shutdown, "Drain"));
 		r.exec();
 	}
 	
@@ -0,0 +1,666 @@
+package cs455.scaling.server;
+
+import cs455.scaling.msg.DigestCache;
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.task.Task;
+import cs455.scaling.util.*;
+
+/**
+ * The settings the {@link Server} was started with. The first two
+ * arguments keep their original positional meaning, everything after
+ * them is an optional <code>-name value</code> pair.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class ServerConfig {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The port to listen on.
+	 */
+	private int port;
+
+	/**
+	 * The number of {@link Processor} threads.
+	 */
+	private int poolSize;
+
+	/**
+	 * The number of tasks the queue will hold.
+	 */
+	private int queueSize;
+
+	/**
+	 * lock for the monitor guarded {@link Queue}, ring for the
+	 * {@link RingQueue} or fair for a {@link FairQueue} per client.
+	 */
+	private String queueType;
+
+	/**
+	 * The most frames one client may have waiting in a {@link FairQueue}
+	 * before reading from it waits, 0 for one read batch. A client holds
+	 * one read at a time and hashes in place, so what it has queued when
+	 * it asks to read again is at most the replies of its last read.
+	 */
+	private int clientQueue;
+
+	/**
+	 * How threads wait on a {@link RingQueue}.
+	 */
+	private WaitStrategy waitStrategy;
+
+	/**
+	 * dispatch for the {@link TaskManager} thread handing tasks to idle
+	 * processors, steal for a {@link StealingPool}, staged for an I/O
+	 * {@link Stage} and a hashing {@link Stage}.
+	 */
+	private String schedule;
+
+	/**
+	 * Threads of the hashing stage when the schedule is staged.
+	 */
+	private int hashThreads;
+
+	/**
+	 * Bounds the {@link PoolController} keeps the thread pool within,
+	 * both 0 for a fixed pool.
+	 */
+	private int poolMin;
+
+	private int poolMax;
+
+	/**
+	 * Microseconds of queue wait the {@link PoolController} tolerates
+	 * before growing the pool.
+	 */
+	private long poolTarget;
+
+	/**
+	 * Number of {@link SubReactor} selector threads, 0 to read on the
+	 * accepting thread.
+	 */
+	private int reactors;
+
+	/**
+	 * round-robin or least-loaded placement of new connections.
+	 */
+	private String balance;
+
+	/**
+	 * Extra checking and reporting, for example buffer leak tracking.
+	 */
+	private boolean debug;
+
+	/**
+	 * Replies that may wait on one {@link Connection} before reading from
+	 * that client pauses.
+	 */
+	private int outbound;
+
+	/**
+	 * Most complete frames cut from one client in one read pass, which
+	 * also sizes each connection's accumulation buffer.
+	 */
+	private int readBatch;
+
+	/**
+	 * Most replies coalesced into one gathering write.
+	 */
+	private int writeBatch;
+
+	/**
+	 * Microseconds a reply may be held back waiting for others to share
+	 * its write, 0 to write right away.
+	 */
+	private long linger;
+
+	/**
+	 * Most clients connected at once, 0 for no limit. New connections
+	 * wait in the listen backlog while the server is full.
+	 */
+	private int maxConnections;
+
+	/**
+	 * Microseconds of mean queue wait past which the {@link OverloadGuard}
+	 * pauses reading from the heaviest clients, 0 to never shed.
+	 */
+	private long shedWait;
+
+	/**
+	 * The digest clients get unless they ask for another.
+	 */
+	private DigestEngine digest;
+
+	/**
+	 * Every client starts with a one byte handshake naming its digest.
+	 */
+	private boolean negotiate;
+
+	/**
+	 * Highest wire protocol version spoken, 2 also takes version 1
+	 * clients, 1 never looks for a version 2 hello.
+	 */
+	private int protocol;
+
+	/**
+	 * Threads of a ForkJoinPool that hashes the frames of a read batch
+	 * at the same time, 0 to hash them one after another.
+	 */
+	private int hashParallel;
+
+	/**
+	 * Megabytes of recently hashed payloads to remember, 0 for no cache.
+	 */
+	private int cacheSize;
+
+	/**
+	 * Milliseconds a shutdown waits for queued tasks to finish and
+	 * replies to be written before closing the remaining clients.
+	 */
+	private long drain;
+
+	/**
+	 * nio for the {@link NioServer} or threads for the thread per
+	 * connection {@link BlockingServer}.
+	 */
+	private String mode;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * The defaults used by the original server.
+	 */
+	public ServerConfig() {
+		this.port = 60100;
+		this.poolSize = 16;
+		this.queueSize = 10000;
+		this.queueType = "lock";
+		this.clientQueue = 0;
+		this.waitStrategy = WaitStrategy.PARK;
+		this.schedule = "dispatch";
+		this.hashThreads = Runtime.getRuntime().availableProcessors();
+		this.poolMin = 0;
+		this.poolMax = 0;
+		this.poolTarget = 1000;
+		this.reactors = 0;
+		this.balance = "round-robin";
+		this.debug = false;
+		this.outbound = 64;
+		this.readBatch = 4;
+		this.writeBatch = 16;
+		this.linger = 0;
+		this.maxConnections = 0;
+		this.shedWait = 100000;
+		this.digest = Hash.SHA1;
+		this.negotiate = false;
+		this.protocol = 2;
+		this.hashParallel = 0;
+		this.cacheSize = 0;
+		this.drain = 5000;
+		this.mode = "nio";
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public String getQueueType() {
+		return queueType;
+	}
+
+	public void setQueueType(String queueType) {
+		this.queueType = queueType;
+	}
+
+	/**
+	 * @return the per client cap in frames, one read batch unless set
+	 */
+	public int getClientQueue() {
+		return clientQueue == 0 ? readBatch : clientQueue;
+	}
+
+	public void setClientQueue(int clientQueue) {
+		this.clientQueue = clientQueue;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public String getSchedule() {
+		return schedule;
+	}
+
+	public void setSchedule(String schedule) {
+		this.schedule = schedule;
+	}
+
+	public int getHashThreads() {
+		return hashThreads;
+	}
+
+	public void setHashThreads(int hashThreads) {
+		this.hashThreads = hashThreads;
+	}
+
+	/**
+	 * @return true if the pool is resized between min and max
+	 */
+	public boolean isAdaptive() {
+		return poolMax > 0;
+	}
+
+	public int getPoolMin() {
+		return poolMin;
+	}
+
+	public void setPoolMin(int poolMin) {
+		this.poolMin = poolMin;
+	}
+
+	public int getPoolMax() {
+		return poolMax;
+	}
+
+	public void setPoolMax(int poolMax) {
+		this.poolMax = poolMax;
+	}
+
+	public long getPoolTarget() {
+		return poolTarget;
+	}
+
+	public void setPoolTarget(long poolTarget) {
+		this.poolTarget = poolTarget;
+	}
+
+	public int getReactors() {
+		return reactors;
+	}
+
+	public void setReactors(int reactors) {
+		this.reactors = reactors;
+	}
+
+	public String getBalance() {
+		return balance;
+	}
+
+	public void setBalance(String balance) {
+		this.balance = balance;
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public int getOutbound() {
+		return outbound;
+	}
+
+	public void setOutbound(int outbound) {
+		this.outbound = outbound;
+	}
+
+	public int getReadBatch() {
+		return readBatch;
+	}
+
+	public void setReadBatch(int readBatch) {
+		this.readBatch = readBatch;
+	}
+
+	public int getWriteBatch() {
+		return writeBatch;
+	}
+
+	public void setWriteBatch(int writeBatch) {
+		this.writeBatch = writeBatch;
+	}
+
+	public long getLinger() {
+		return linger;
+	}
+
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public long getShedWait() {
+		return shedWait;
+	}
+
+	public void setShedWait(long shedWait) {
+		this.shedWait = shedWait;
+	}
+
+	public DigestEngine getDigest() {
+		return digest;
+	}
+
+	public void setDigest(DigestEngine digest) {
+		this.digest = digest;
+	}
+
+	public boolean isNegotiate() {
+		return negotiate;
+	}
+
+	public void setNegotiate(boolean negotiate) {
+		this.negotiate = negotiate;
+	}
+
+	public int getProtocol() {
+		return protocol;
+	}
+
+	public void setProtocol(int protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * @return the largest version 2 payload, one read batch of version 1
+	 *         messages
+	 */
+	public int getMaxPayload() {
+		return readBatch * Message.size;
+	}
+
+	public int getHashParallel() {
+		return hashParallel;
+	}
+
+	public void setHashParallel(int hashParallel) {
+		this.hashParallel = hashParallel;
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	public long getDrain() {
+		return drain;
+	}
+
+	public void setDrain(long drain) {
+		this.drain = drain;
+	}
+
+	/**
+	 * @return a digest cache of the configured size, or null if there is
+	 *         none
+	 */
+	public DigestCache makeCache() {
+		if (cacheSize == 0)
+			return null;
+		return new DigestCache(cacheSize * 1048576L, 64);
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+
+	// METHODS ----------------------------------------------------------
+
+	/**
+	 * Build the task queue selected by {@link #getQueueType()}.
+	 * 
+	 * @return an empty queue
+	 */
+	public TaskQueue<Task> makeQueue() {
+		if (queueType.equals("ring"))
+			return new RingQueue<Task>(queueSize, waitStrategy);
+		return new Queue<Task>(queueSize);
+	}
+
+	/**
+	 * Parse the command line. Exits with an error message on bad input the
+	 * same way the original main did.
+	 * 
+	 * @param args
+	 *            port poolSize [-name value ...]
+	 * @return the parsed settings
+	 */
+	public static ServerConfig parse(String[] args) {
+		ServerConfig config = new ServerConfig();
+		try {
+			config.port = Integer.parseInt(args[0]);
+		} catch (NumberFormatException ex) {
+			System.err.println("Error: Port argument must be a number.");
+			System.exit(1);
+		} catch (ArrayIndexOutOfBoundsException ex) {}
+
+		try {
+			config.poolSize = Integer.parseInt(args[1]);
+		} catch (NumberFormatException ex) {
+			System.err.println("Error: Thread pool size argument must be a number.");
+			System.exit(1);
+		} catch (ArrayIndexOutOfBoundsException ex) {}
+
+		for (int i = 2; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				System.err.println("Error: Option " + args[i] + " is missing a value.");
+				System.exit(1);
+			}
+			try {
+				config.setOption(args[i], args[i + 1]);
+			} catch (IllegalArgumentException ex) {
+				System.err.println("Error: " + ex.getMessage());
+				System.exit(1);
+			}
+		}
+		try {
+			if (config.queueType.equals("fair") && config.schedule.equals("dispatch") == false)
+				throw new IllegalArgumentException("The fair queue needs -schedule dispatch.");
+			config.checkPoolBounds();
+		} catch (IllegalArgumentException ex) {
+			System.err.println("Error: " + ex.getMessage());
+			System.exit(1);
+		}
+		return config;
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	/**
+	 * Fill in whichever pool bound was left out and keep the starting pool
+	 * size within the bounds.
+	 */
+	private void checkPoolBounds() {
+		if (this.poolMin == 0 && this.poolMax == 0)
+			return;
+		if (this.schedule.equals("dispatch") == false)
+			throw new IllegalArgumentException("Pool bounds need -schedule dispatch.");
+		if (this.poolMin == 0)
+			this.poolMin = 1;
+		if (this.poolMax == 0)
+			this.poolMax = Math.max(this.poolMin, this.poolSize);
+		if (this.poolMin > this.poolMax)
+			throw new IllegalArgumentException("Pool min must not be above pool max.");
+		this.poolSize = Math.max(this.poolMin, Math.min(this.poolSize, this.poolMax));
+	}
+
+	private void setOption(String name, String value) {
+		switch (name) {
+		case "-mode":
+			if (value.equals("nio") == false && value.equals("threads") == false)
+				throw new IllegalArgumentException("Mode must be nio or threads.");
+			this.mode = value;
+			break;
+		case "-queue":
+			if (value.equals("lock") == false && value.equals("ring") == false && value.equals("fair") == false)
+				throw new IllegalArgumentException("Queue must be lock, ring or fair.");
+			this.queueType = value;
+			break;
+		case "-client-queue":
+			this.clientQueue = Integer.parseInt(value);
+			if (this.clientQueue < 1)
+				throw new IllegalArgumentException("Client queue must be at least 1.");
+			break;
+		case "-queue-size":
+			this.queueSize = Integer.parseInt(value);
+			break;
+		case "-schedule":
+			if (value.equals("dispatch") == false && value.equals("steal") == false
+					&& value.equals("staged") == false)
+				throw new IllegalArgumentException("Schedule must be dispatch, steal or staged.");
+			this.schedule = value;
+			break;
+		case "-hash-threads":
+			this.hashThreads = Integer.parseInt(value);
+			if (this.hashThreads < 1)
+				throw new IllegalArgumentException("Hash threads must be at least 1.");
+			break;
+		case "-pool-min":
+			this.poolMin = Integer.parseInt(value);
+			if (this.poolMin < 1)
+				throw new IllegalArgumentException("Pool min must be at least 1.");
+			break;
+		case "-pool-max":
+			this.poolMax = Integer.parseInt(value);
+			if (this.poolMax < 1)
+				throw new IllegalArgumentException("Pool max must be at least 1.");
+			break;
+		case "-pool-target":
+			this.poolTarget = Long.parseLong(value);
+			if (this.poolTarget < 1)
+				throw new IllegalArgumentException("Pool target must be at least 1.");
+			break;
+		case "-reactors":
+			this.reactors = Integer.parseInt(value);
+			if (this.reactors < 0)
+				throw new IllegalArgumentException("Reactors must not be negative.");
+			break;
+		case "-balance":
+			if (value.equals("round-robin") == false && value.equals("least-loaded") == false)
+				throw new IllegalArgumentException("Balance must be round-robin or least-loaded.");
+			this.balance = value;
+			break;
+		case "-debug":
+			if (value.equals("true") == false && value.equals("false") == false)
+				throw new IllegalArgumentException("Debug must be true or false.");
+			this.debug = Boolean.parseBoolean(value);
+			break;
+		case "-outbound":
+			this.outbound = Integer.parseInt(value);
+			if (this.outbound < 1)
+				throw new IllegalArgumentException("Outbound must be at least 1.");
+			break;
+		case "-read-batch":
+			this.readBatch = Integer.parseInt(value);
+			if (this.readBatch < 1)
+				throw new IllegalArgumentException("Read batch must be at least 1.");
+			break;
+		case "-write-batch":
+			this.writeBatch = Integer.parseInt(value);
+			if (this.writeBatch < 1)
+				throw new IllegalArgumentException("Write batch must be at least 1.");
+			break;
+		case "-linger":
+			this.linger = Long.parseLong(value);
+			if (this.linger < 0)
+				throw new IllegalArgumentException("Linger must not be negative.");
+			break;
+		case "-max-connections":
+			this.maxConnections = Integer.parseInt(value);
+			if (this.maxConnections < 0)
+				throw new IllegalArgumentException("Max connections must not be negative.");
+			break;
+		case "-shed-wait":
+			this.shedWait = Long.parseLong(value);
+			if (this.shedWait < 0)
+				throw new IllegalArgumentException("Shed wait must not be negative.");
+			break;
+		case "-digest":
+			this.digest = Hash.engine(value);
+			break;
+		case "-negotiate":
+			if (value.equals("true") == false && value.equals("false") == false)
+				throw new IllegalArgumentException("Negotiate must be true or false.");
+			this.negotiate = Boolean.parseBoolean(value);
+			break;
+		case "-cache":
+			this.cacheSize = Integer.parseInt(value);
+			if (this.cacheSize < 0)
+				throw new IllegalArgumentException("Cache must not be negative.");
+			break;
+		case "-drain":
+			this.drain = Long.parseLong(value);
+			if (this.drain < 0)
+				throw new IllegalArgumentException("Drain must not be negative.");
+			break;
+		case "-protocol":
+			if (value.equals("1") == false && value.equals("2") == false)
+				throw new IllegalArgumentException("Protocol must be 1 or 2.");
+			this.protocol = Integer.parseInt(value);
+			break;
+		case "-hash-parallel":
+			this.hashParallel = Integer.parseInt(value);
+			if (this.hashParallel < 0)
+				throw new IllegalArgumentException("Hash parallel must not be negative.");
+			break;
+		case "-wait":
+			this.waitStrategy = WaitStrategy.parse(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option " + name + ".");
+		}
+	}
+
+	public String toString() {
+		return "[ port: " + port + " pool: " + poolSize + " queue: " + queueType + "(" + queueSize + ") wait: "
+				+ waitStrategy + " schedule: " + schedule + " reactors: " + reactors + " " + balance + " ]";
+	}
+
+}
@@ -0,0 +1,212 @@
+package cs455.scaling.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide counters of messages read, hashed and sent and the bytes
+ * moved each way, plus a sent counter per connected client. Every counter
+ * is a {@link LongAdder}, which stripes its updates over cells, so the
+ * processor and selector threads never contend on one word. Totals are
+ * never reset; {@link #getInfo()} reports the difference since its last
+ * call as rates.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class ServerMetrics {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Frames cut from what clients sent.
+	 */
+	final private LongAdder readCount;
+
+	final private LongAdder hashCount;
+
+	/**
+	 * Replies fully written.
+	 */
+	final private LongAdder sentCount;
+
+	final private LongAdder bytesIn;
+
+	final private LongAdder bytesOut;
+
+	/**
+	 * Write system calls, compared against replies sent to see how well
+	 * replies are being coalesced.
+	 */
+	final private LongAdder writeCount;
+
+	/**
+	 * Replies sent to each connected client since the last interval.
+	 */
+	final private Set<LongAdder> clients;
+
+	final private AtomicInteger clientCount;
+
+	/**
+	 * Totals at the end of the last interval, only touched by getInfo.
+	 */
+	private long lastRead;
+
+	private long lastHashed;
+
+	private long lastSent;
+
+	private long lastIn;
+
+	private long lastOut;
+
+	private long lastTime;
+
+	// CONSTRUCTORS *****************************************************
+
+	public ServerMetrics() {
+		this.readCount = new LongAdder();
+		this.hashCount = new LongAdder();
+		this.sentCount = new LongAdder();
+		this.bytesIn = new LongAdder();
+		this.bytesOut = new LongAdder();
+		this.writeCount = new LongAdder();
+		this.clients = ConcurrentHashMap.newKeySet();
+		this.clientCount = new AtomicInteger();
+		this.lastTime = System.nanoTime();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Count a newly accepted client.
+	 */
+	public void clientConnected() {
+		this.clientCount.incrementAndGet();
+	}
+
+	public void clientDisconnected() {
+		this.clientCount.decrementAndGet();
+	}
+
+	/**
+	 * Start tracking one client's throughput.
+	 *
+	 * @return the client's counter, to be passed to
+	 *         {@link #countSent(LongAdder, int)}
+	 */
+	public LongAdder register() {
+		LongAdder client = new LongAdder();
+		this.clients.add(client);
+		return client;
+	}
+
+	/**
+	 * Stop tracking a client that went away.
+	 */
+	public void unregister(LongAdder client) {
+		this.clients.remove(client);
+	}
+
+	/**
+	 * @param frames
+	 *            complete messages cut from the bytes
+	 * @param bytes
+	 *            read from a client
+	 */
+	public void countRead(int frames, long bytes) {
+		this.readCount.add(frames);
+		this.bytesIn.add(bytes);
+	}
+
+	public void countHashed(int hashes) {
+		this.hashCount.add(hashes);
+	}
+
+	/**
+	 * @param bytes
+	 *            taken by one write system call
+	 */
+	public void countWrite(long bytes) {
+		this.writeCount.increment();
+		this.bytesOut.add(bytes);
+	}
+
+	/**
+	 * @param client
+	 *            the client's counter from {@link #register()}
+	 * @param replies
+	 *            replies fully written to it
+	 */
+	public void countSent(LongAdder client, int replies) {
+		this.sentCount.add(replies);
+		client.add(replies);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	public int getClientCount() {
+		return this.clientCount.get();
+	}
+
+	/**
+	 * @return write system calls since the server started
+	 */
+	public long getWrites() {
+		return this.writeCount.sum();
+	}
+
+	/**
+	 * @return replies sent since the server started
+	 */
+	public long getSent() {
+		return this.sentCount.sum();
+	}
+
+	/**
+	 * Rates over the time since the last call, which starts a new
+	 * interval. Per client throughput is summarised as the mean and
+	 * standard deviation over the clients connected now.
+	 */
+	public synchronized String getInfo() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - this.lastTime) / 1e9;
+		this.lastTime = now;
+
+		long read = this.readCount.sum();
+		long hashed = this.hashCount.sum();
+		long sent = this.sentCount.sum();
+		long in = this.bytesIn.sum();
+		long out = this.bytesOut.sum();
+
+		int n = 0;
+		double sum = 0;
+		double squares = 0;
+		for (LongAdder client : this.clients) {
+			double rate = client.sumThenReset() / seconds;
+			sum += rate;
+			squares += rate * rate;
+			n++;
+		}
+		double mean = n == 0 ? 0 : sum / n;
+		double deviation = n == 0 ? 0 : Math.sqrt(Math.max(0, squares / n - mean * mean));
+
+		String info = String.format("Current Server Throughput: %.0f messages/s, Active Client Connections: %d"
+				+ ", Mean Per-client Throughput: %.3f messages/s, Std. Dev. Of Per-client Throughput: %.3f messages/s"
+				+ ", Read: %.0f/s, Hashed: %.0f/s, In: %.1f KB/s, Out: %.1f KB/s",
+				(sent - this.lastSent) / seconds, this.clientCount.get(), mean, deviation,
+				(read - this.lastRead) / seconds, (hashed - this.lastHashed) / seconds,
+				(in - this.lastIn) / seconds / 1024, (out - this.lastOut) / seconds / 1024);
+
+		this.lastRead = read;
+		this.lastHashed = hashed;
+		this.lastSent = sent;
+		this.lastIn = in;
+		this.lastOut = out;
+		return info;
+	}
+
+}
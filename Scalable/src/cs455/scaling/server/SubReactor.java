@@ -0,0 +1,190 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector thread that watches a share of the client connections for
+ * read and write readiness. The {@link NioServer} accepts connections and hands
+ * each one to a sub reactor, which then feeds the task pipeline.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class SubReactor extends Thread {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Only the channels owned by this reactor are registered here.
+	 */
+	final private Selector selector;
+
+	/**
+	 * Channels accepted by the acceptor thread that still need to be
+	 * registered. Registration has to happen on this thread or it would
+	 * block behind select().
+	 */
+	final private ConcurrentLinkedQueue<SocketChannel> pending;
+
+	/**
+	 * The owning server, readiness is passed back to it.
+	 */
+	final private NioServer server;
+
+	/**
+	 * Connections currently owned, used for least loaded placement.
+	 */
+	final private AtomicInteger clientCount;
+
+	/**
+	 * To stop the run loop.
+	 */
+	private volatile boolean running;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param server
+	 *            the server that owns this reactor
+	 * @param index
+	 *            used in the thread name
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	public SubReactor(NioServer server, int index) throws IOException {
+		this.selector = SelectorProvider.provider().openSelector();
+		this.pending = new ConcurrentLinkedQueue<SocketChannel>();
+		this.server = server;
+		this.clientCount = new AtomicInteger();
+		this.running = true;
+		super.setName("SubReactor-" + index);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Take ownership of a freshly accepted channel.
+	 * 
+	 * @param channel
+	 *            a connected non blocking channel
+	 * @return false if the reactor has stopped, the channel is then still
+	 *         the caller's
+	 */
+	public boolean register(SocketChannel channel) {
+		if (this.running == false)
+			return false;
+		this.clientCount.incrementAndGet();
+		this.pending.add(channel);
+		// the loop may have stopped and emptied pending meanwhile, whoever
+		// removes the channel first owns it
+		if (this.running == false && this.pending.remove(channel)) {
+			this.clientCount.decrementAndGet();
+			return false;
+		}
+		this.selector.wakeup();
+		return true;
+	}
+
+	/**
+	 * @return true if the key belongs to this reactor's selector
+	 */
+	public boolean owns(SelectionKey key) {
+		return key.selector() == this.selector;
+	}
+
+	public void clientDisconnected() {
+		this.clientCount.decrementAndGet();
+	}
+
+	public int getClientCount() {
+		return this.clientCount.get();
+	}
+
+	/**
+	 * @return false once the loop has stopped or been asked to
+	 */
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Ask the loop to stop without waiting for it. On its way out the
+	 * reactor thread closes every connection it owns, so they are counted
+	 * as disconnected, and refuses channels still waiting to register.
+	 */
+	public void close() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	public void run() {
+		try {
+			while (this.running) {
+				this.selector.select();
+				this.registerPending();
+				Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+				while (keyIterator.hasNext()) {
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+					try {
+						this.server.ready(key);
+					} catch (CancelledKeyException e) {
+						// a worker closed the client after it was selected
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			System.err.println("[ ERROR ] " + getName() + " " + e.toString());
+		} finally {
+			this.running = false;
+			this.closeAll();
+		}
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = this.pending.poll()) != null) {
+			try {
+				this.server.connectionRegistered(channel.register(this.selector, SelectionKey.OP_READ));
+			} catch (ClosedChannelException e) {
+				this.server.clientDisconnected(null);
+				this.clientDisconnected();
+			}
+		}
+	}
+
+	private void closeAll() {
+		SocketChannel channel;
+		while ((channel = this.pending.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+			this.server.clientDisconnected(null);
+			this.clientDisconnected();
+		}
+		for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+			if (key.attachment() instanceof Connection) {
+				((Connection) key.attachment()).close();
+				continue;
+			}
+			try {
+				key.channel().close();
+			} catch (IOException e) {}
+		}
+		try {
+			this.selector.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -1,5 +1,10 @@
 package cs455.scaling.server;
 
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.msg.*;
 import cs455.scaling.task.*;
 import cs455.scaling.util.*;
 
@@ -8,20 +13,100 @@ public final class TaskManager extends Thread {
 	/**
 	 * The connection master statistics holder. Each message will be placed in
 	 * the queue until the a {@link Processor} can process the message.
-	 * The default size is 10000.
+	 * The default size is 10000. Any {@link TaskQueue} can be plugged in.
 	 */
-	private Queue<Task> queue;
+	private TaskQueue<Task> queue;
 
 	/**
 	 * The connection master statistics holder. All Processor treads will be placed
 	 * in this pool to be called when a message is received.
 	 */
 	private ThreadPool threadpool;
+
+	/**
+	 * The queue again when it is a {@link FairQueue}, otherwise null.
+	 */
+	private FairQueue<Task> fairQueue;
+
+	/**
+	 * Set instead of the queue and thread pool when tasks are scheduled by
+	 * work stealing. There is no dispatcher thread in that mode.
+	 */
+	private StealingPool stealingPool;
+
+	/**
+	 * Set instead of the queue and thread pool when the schedule is
+	 * staged. Reads and writes run on the I/O stage and hashing on the
+	 * hash stage, with a bounded queue in front of each.
+	 */
+	private Stage ioStage;
+
+	private Stage hashStage;
 	
 	/**
-	 * 
+	 * Hashes the frames of a batch side by side, null to hash them one
+	 * after another on the thread running the hash task.
+	 */
+	private ForkJoinPool hashPool;
+
+	/**
+	 * Digests of recently hashed payloads, null when not caching.
+	 */
+	private DigestCache digestCache;
+
+	/**
+	 * Direct buffers that hash replies are written from, large enough for
+	 * the hex digest of any engine.
+	 */
+	private BufferPool replyPool;
+	
+	/**
+	 * Messages read, hashed and sent by every connection.
+	 */
+	private ServerMetrics metrics;
+
+	/**
+	 * Nanoseconds pooled processors spent running tasks, sampled and
+	 * reset by the {@link PoolController}.
+	 */
+	final private LongAdder busyNanos;
+
+	/**
+	 * Nanoseconds tasks waited between being queued and being handed to
+	 * a processor, and how many tasks that was.
+	 */
+	final private LongAdder waitNanos;
+
+	final private LongAdder waitCount;
+
+	/**
+	 * The same again for the {@link OverloadGuard}, which samples on its
+	 * own clock.
+	 */
+	final private LongAdder recentNanos;
+
+	final private LongAdder recentCount;
+
+	/**
+	 * The last queue wait the guard saw, kept while nothing is dispatched.
+	 */
+	private long recentWait;
+
+	/**
+	 * Resizes the thread pool, null when the pool size is fixed.
+	 */
+	private PoolController controller;
+
+	/**
+	 * Tasks handed to the manager that have not finished running, queued
+	 * or not, so a drain can tell when the pipeline is empty.
+	 */
+	final private LongAdder unfinished;
+
+	/**
+	 * Set by {@link #close()}, the dispatcher then ends quietly.
 	 */
-	private Integer sentCount;
+	private volatile boolean closed;
 	
 	/**
 	 * 
@@ -29,9 +114,156 @@ public final class TaskManager extends Thread {
 	 * @param queueSize
 	 */
 	public TaskManager(int poolSize, int queueSize) {
-		this.queue = new Queue<Task>(queueSize);
+		this(poolSize, new Queue<Task>(queueSize));
+	}
+	
+	/**
+	 * 
+	 * @param poolSize
+	 * @param queue
+	 * 		any {@link TaskQueue}, for example a {@link RingQueue}
+	 */
+	public TaskManager(int poolSize, TaskQueue<Task> queue) {
+		this.queue = queue;
+		this.stealingPool = null;
+		this.ioStage = null;
+		this.hashStage = null;
+		this.controller = null;
+		this.fairQueue = null;
+		this.hashPool = null;
+		this.digestCache = null;
+		this.makePools(poolSize, false);
+		this.metrics = new ServerMetrics();
+		this.busyNanos = new LongAdder();
+		this.waitNanos = new LongAdder();
+		this.waitCount = new LongAdder();
+		this.recentNanos = new LongAdder();
+		this.recentCount = new LongAdder();
+		this.recentWait = 0;
+		this.unfinished = new LongAdder();
+		this.closed = false;
+		// last, the pool keeps this manager and runs its threads with it
 		this.threadpool = new ThreadPool(this, poolSize);
-		this.sentCount = 0;
+	}
+
+	/**
+	 * Build the manager the command line asked for.
+	 * 
+	 * @param config
+	 * 		the pool size, queue and scheduling mode
+	 */
+	public TaskManager(ServerConfig config) {
+		this.hashPool = config.getHashParallel() > 0 ? new ForkJoinPool(config.getHashParallel()) : null;
+		this.digestCache = config.makeCache();
+		this.makePools(config.getPoolSize(), config.isDebug());
+		this.metrics = new ServerMetrics();
+		this.busyNanos = new LongAdder();
+		this.waitNanos = new LongAdder();
+		this.waitCount = new LongAdder();
+		this.recentNanos = new LongAdder();
+		this.recentCount = new LongAdder();
+		this.recentWait = 0;
+		this.unfinished = new LongAdder();
+		this.closed = false;
+		// last, the pools keep this manager and run their threads with it
+		this.ioStage = null;
+		this.hashStage = null;
+		this.controller = null;
+		this.fairQueue = null;
+		if (config.getSchedule().equals("steal")) {
+			this.queue = null;
+			this.threadpool = null;
+			this.stealingPool = new StealingPool(this, config.getPoolSize());
+		} else if (config.getSchedule().equals("staged")) {
+			this.queue = null;
+			this.threadpool = null;
+			this.stealingPool = null;
+			this.ioStage = new Stage("IO", config.makeQueue(), config.getPoolSize(), this);
+			this.hashStage = new Stage("Hash", config.makeQueue(), config.getHashThreads(), this);
+		} else {
+			if (config.getQueueType().equals("fair")) {
+				this.fairQueue = makeFairQueue(config);
+				this.queue = this.fairQueue;
+			} else {
+				this.queue = config.makeQueue();
+			}
+			this.threadpool = new ThreadPool(this, config.getPoolSize());
+			this.stealingPool = null;
+			if (config.isAdaptive())
+				this.controller = new PoolController(this, this.threadpool, config);
+		}
+	}
+
+	private void makePools(int poolSize, boolean debug) {
+		this.replyPool = new BufferPool(Frame.maxReplySize(), poolSize, 64, debug);
+	}
+
+	/**
+	 * Tasks are queued per client, capped and served by deficit round
+	 * robin in frames. The quantum is one frame, so a client whose tasks
+	 * carry full read batches is served once every read batch of turns
+	 * and gets the same frames per round as one sending single frames.
+	 */
+	private static FairQueue<Task> makeFairQueue(ServerConfig config) {
+		return new FairQueue<Task>(config.getQueueSize(), config.getClientQueue(), 1,
+				Task::getKey, Task::getCost, key -> {
+					Object connection = ((SelectionKey) key).attachment();
+					if (connection instanceof Connection)
+						((Connection) connection).unthrottle();
+				});
+	}
+
+	/**
+	 * @return the pool hashing a batch's frames side by side, or null
+	 */
+	public ForkJoinPool getHashPool() {
+		return this.hashPool;
+	}
+
+	/**
+	 * @return the digest cache, or null if there is none
+	 */
+	public DigestCache getDigestCache() {
+		return this.digestCache;
+	}
+
+	/**
+	 * @return the engine answering through the digest cache if there is
+	 *         one, otherwise the engine itself
+	 */
+	public DigestEngine cached(DigestEngine engine) {
+		if (this.digestCache == null)
+			return engine;
+		return this.digestCache.wrap(engine);
+	}
+
+	public BufferPool getReplyPool() {
+		return this.replyPool;
+	}
+
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Starts the processors, stage threads or dispatcher thread. The
+	 * constructors start nothing, so every thread sees the manager fully
+	 * built: starting a thread orders everything written before it.
+	 */
+	public synchronized void start() {
+		if (this.stealingPool != null) {
+			this.stealingPool.start();
+			return;
+		}
+		if (this.ioStage != null) {
+			this.ioStage.start();
+			this.hashStage.start();
+			return;
+		}
+		this.threadpool.start();
+		super.start();
+		if (this.controller != null)
+			this.controller.start();
 	}
 	
 	/**
@@ -39,20 +271,144 @@ public final class TaskManager extends Thread {
 	 * @return
 	 */
 	public String getInfo() {
-		return "[ queue count: "+this.queue.getCount()+" threadpool count: "+this.threadpool.getCount()+" ]";
+		String pools = " "+this.replyPool.getInfo()
+				+" [ writes: "+this.metrics.getWrites()+" replies: "+this.metrics.getSent()+" ]";
+		if (this.stealingPool != null)
+			return this.stealingPool.getInfo()+pools;
+		if (this.ioStage != null)
+			return this.ioStage.getInfo()+" "+this.hashStage.getInfo()+pools;
+		String fair = this.fairQueue == null ? "" : " "+this.fairQueue.getInfo();
+		return "[ queue count: "+this.queue.getCount()+" threadpool count: "+this.threadpool.getCount()
+				+"/"+this.threadpool.getSize()+" ]"+fair+pools;
+	}
+
+	/**
+	 * @return the number of tasks waiting for a processor.
+	 */
+	public int getQueued() {
+		if (this.stealingPool != null)
+			return this.stealingPool.getCount();
+		if (this.ioStage != null)
+			return this.ioStage.getCount() + this.hashStage.getCount();
+		return this.queue.getCount();
+	}
+
+	/**
+	 * @return the most tasks that can wait, Integer.MAX_VALUE when work
+	 *         stealing since the deques are unbounded
+	 */
+	public int getCapacity() {
+		if (this.stealingPool != null)
+			return Integer.MAX_VALUE;
+		if (this.ioStage != null)
+			return this.ioStage.getCapacity();
+		return this.queue.getCapacity();
+	}
+
+	/**
+	 * @return tasks taken from a peer's deque, -1 when not work stealing.
+	 */
+	public long getSteals() {
+		if (this.stealingPool != null)
+			return this.stealingPool.getSteals();
+		return -1;
 	}
 	
+	/**
+	 * @return tasks queued or running, see {@link #taskDone()}
+	 */
+	public long getUnfinished() {
+		return this.unfinished.sum();
+	}
+
 	/**
 	 * TODO write comment
 	 * @param t
 	 */
 	public void enqueueTask(Task t) {
+		t.markQueued();
+		this.unfinished.increment();
+		if (this.stealingPool != null) {
+			this.stealingPool.submit(t);
+			return;
+		}
 		try {
-			queue.enqueue(t);
+			if (this.ioStage != null) {
+				this.ioStage.submit(t);
+			} else {
+				queue.enqueue(t);
+			}
 		} catch (InterruptedException e) {
+			this.unfinished.decrement();
 			System.err.println("TaskManager:: enqueueTask() interrupted.");
 		}
 	}
+
+	/**
+	 * Queue a task unless that would mean waiting for room. Selector
+	 * threads use this so a full queue never stalls every client.
+	 * 
+	 * @return false if the queue was full and the task was not queued
+	 */
+	public boolean offerTask(Task t) {
+		t.markQueued();
+		this.unfinished.increment();
+		if (this.stealingPool != null) {
+			this.stealingPool.submit(t);
+			return true;
+		}
+		boolean queued = this.ioStage != null ? this.ioStage.offer(t) : this.queue.offer(t);
+		if (queued == false)
+			this.unfinished.decrement();
+		return queued;
+	}
+
+	/**
+	 * Asked before reading more from a client.
+	 * 
+	 * @return true if the client has too many tasks queued and reading
+	 *         from it should wait, only ever with a fair queue
+	 */
+	public boolean throttle(SelectionKey key) {
+		return this.fairQueue != null && this.fairQueue.throttle(key);
+	}
+
+	/**
+	 * Hash a batch of frames. A staged manager queues it on the hash
+	 * stage, otherwise it is hashed right away on the calling thread.
+	 * 
+	 * @param t
+	 *            a {@link HashTask}
+	 */
+	public void enqueueHash(Task t) {
+		if (this.hashStage == null) {
+			t.exec(this);
+			return;
+		}
+		try {
+			t.markQueued();
+			this.unfinished.increment();
+			this.hashStage.submit(t);
+		} catch (InterruptedException e) {
+			this.unfinished.decrement();
+			System.err.println("TaskManager:: enqueueHash() interrupted.");
+		}
+	}
+
+	/**
+	 * Queue the replies of a hashed batch to be written. Whoever hashed
+	 * the batch never waits for room, since the threads that would make
+	 * room may themselves be waiting to queue work: when the queue is
+	 * full the write, which does not block, is done on the calling thread
+	 * instead.
+	 * 
+	 * @param t
+	 *            a {@link SendTask}
+	 */
+	public void enqueueSend(Task t) {
+		if (this.offerTask(t) == false)
+			t.exec(this);
+	}
 	
 	/**
 	 * TODO write comment
@@ -65,28 +421,63 @@ public final class TaskManager extends Thread {
 			System.err.println("TaskManager:: taskComplete() interrupted.");
 		}
 	}
-	
+		
+	/**
+	 * A queued task has finished running. Called by whichever thread ran
+	 * it, tasks run in place of queueing are not counted.
+	 */
+	public void taskDone() {
+		this.unfinished.decrement();
+	}
 
 	/**
-	 * 
+	 * Time a pooled processor spent running one task.
 	 */
-	public void incrementSent() {
-		synchronized (sentCount) {
-			this.sentCount++;	
-		}
+	public void countBusy(long nanos) {
+		this.busyNanos.add(nanos);
 	}
-	
+
 	/**
-	 * 
-	 * @return
+	 * A thread is about to run a queued task, count how long it waited.
 	 */
-	public String getSent() {
-		String ret = "";
-		synchronized (sentCount) {
-			ret += this.sentCount / 5;
-			this.sentCount = 0;
-		}
-		return ret;
+	public void countWait(Task task) {
+		long nanos = System.nanoTime() - task.getQueuedAt();
+		this.waitNanos.add(nanos);
+		this.waitCount.increment();
+		this.recentNanos.add(nanos);
+		this.recentCount.increment();
+	}
+
+	/**
+	 * @return nanoseconds processors were busy since the last call
+	 */
+	long takeBusyNanos() {
+		return this.busyNanos.sumThenReset();
+	}
+
+	/**
+	 * @return mean nanoseconds a task waited for a processor since the
+	 *         last call, 0 if none were dispatched
+	 */
+	long takeMeanWait() {
+		long count = this.waitCount.sumThenReset();
+		long nanos = this.waitNanos.sumThenReset();
+		return count == 0 ? 0 : nanos / count;
+	}
+
+	/**
+	 * Like {@link #takeMeanWait()} for the {@link OverloadGuard}. When no
+	 * task was started but some are queued the last mean is kept, a
+	 * stalled queue is not an idle one.
+	 */
+	long takeRecentWait() {
+		long count = this.recentCount.sumThenReset();
+		long nanos = this.recentNanos.sumThenReset();
+		if (count > 0)
+			this.recentWait = nanos / count;
+		else if (this.getQueued() == 0)
+			this.recentWait = 0;
+		return this.recentWait;
 	}
 	
 	/**
@@ -97,19 +488,40 @@ public final class TaskManager extends Thread {
 			while(Boolean.toString(true).equals("true")) {
 				Task task = queue.dequeue();
 				Processor processor = threadpool.dequeue();
+				this.countWait(task);
 				processor.addTask(task);
 			}
 		} catch (InterruptedException e) {
+			if (this.closed)
+				return;
 			e.printStackTrace();
 			this.close();
 		}
 	}
 	
 	/**
-	 * 
+	 * Stop the dispatcher, the processors, the stages and the hash pool.
+	 * Tasks still queued are dropped, {@link NioServer#drain(long)} waits
+	 * for them first. Calling it again has no effect.
 	 */
-	public void close() {
-		// TODO :: Add close to TaskManager
+	public synchronized void close() {
+		if (this.closed)
+			return;
+		this.closed = true;
+		if (this.controller != null)
+			this.controller.interrupt();
+		if (this.threadpool != null) {
+			this.interrupt();
+			this.threadpool.close();
+		}
+		if (this.stealingPool != null)
+			this.stealingPool.close();
+		if (this.ioStage != null) {
+			this.ioStage.close();
+			this.hashStage.close();
+		}
+		if (this.hashPool != null)
+			this.hashPool.shutdown();
 	}
 	
 }
@@ -0,0 +1,197 @@
+package cs455.scaling.task;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cs455.scaling.msg.DigestEngine;
+import cs455.scaling.msg.Frame;
+import cs455.scaling.msg.Hash;
+import cs455.scaling.msg.Message;
+import cs455.scaling.server.Connection;
+import cs455.scaling.server.TaskManager;
+import cs455.scaling.util.BufferPool;
+
+/**
+ * Hashes the frames a {@link ReadTask} left in the connection's direct
+ * accumulation buffer in place, each frame straight into a pooled reply
+ * buffer, then gives up the read claim and passes the replies on to be
+ * sent. Version 1 frames are answered with the hex digest, version 2
+ * requests with their id and the binary digest. This is the only CPU
+ * heavy task, in a staged server it runs on the hashing stage and never
+ * touches a socket. Given a ForkJoinPool the frames of a batch are hashed
+ * side by side by its workers.
+ */
+
+public class HashTask extends Task {
+
+	/**
+	 * Complete frames waiting at the front of the buffer, set by the read
+	 * task before each use.
+	 */
+	private int count;
+
+	public HashTask(SelectionKey key) {
+		super(TaskType.HASH, key);
+		this.count = 0;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	/**
+	 * @return the number of frames
+	 */
+	public int getCost() {
+		return this.count;
+	}
+
+	public void exec(TaskManager manager) {
+		Connection connection = super.connection();
+		ByteBuffer[] replies = new ByteBuffer[this.count];
+		hashFrames(connection.getEngine(), manager.getHashPool(), connection.isFramed(), connection.getInbound(),
+				manager.getReplyPool(), replies, this.count);
+		manager.getMetrics().countHashed(this.count);
+		manager.enqueueSend(new SendTask(key, replies, this.count));
+		connection.endRead();
+	}
+
+	/**
+	 * Hash complete frames where they lie and leave any trailing partial
+	 * frame at the front of the buffer for the next read.
+	 * 
+	 * @param engine
+	 *            the digest to reply with
+	 * @param hashPool
+	 *            splits the batch between its workers, null to hash the
+	 *            frames one after another on this thread
+	 * @param framed
+	 *            true for version 2 requests, false for version 1 frames
+	 * @param inbound
+	 *            the accumulation buffer in read mode, back in write mode
+	 *            afterwards
+	 * @param replyPool
+	 *            where the reply buffers come from
+	 * @param replies
+	 *            receives one flipped reply per frame
+	 * @param count
+	 *            how many frames to hash
+	 */
+	public static void hashFrames(DigestEngine engine, ForkJoinPool hashPool, boolean framed, ByteBuffer inbound,
+			BufferPool replyPool, ByteBuffer[] replies, int count) {
+		int limit = inbound.limit();
+		int end;
+		if (hashPool == null || count == 1) {
+			end = hashRange(engine, framed, inbound, inbound.position(), replyPool, replies, 0, count);
+		} else {
+			int[] offsets = new int[count + 1];
+			offsets[0] = inbound.position();
+			for (int i = 0; i < count; i++)
+				offsets[i + 1] = offsets[i] + (framed ? Frame.HEADER + inbound.getInt(offsets[i]) : Message.size);
+			hashPool.invoke(new Batch(engine, framed, inbound, offsets, replyPool, replies, 0, count));
+			end = offsets[count];
+		}
+		inbound.limit(limit).position(end);
+		inbound.compact();
+	}
+
+	/**
+	 * Hash frames from up to end, each into a new reply.
+	 * 
+	 * @param frames
+	 *            a view of the accumulation buffer this thread may move
+	 * @param position
+	 *            where frame from begins
+	 * @return where the frame after the last begins
+	 */
+	private static int hashRange(DigestEngine engine, boolean framed, ByteBuffer frames, int position,
+			BufferPool replyPool, ByteBuffer[] replies, int from, int end) {
+		int limit = frames.limit();
+		for (int i = from; i < end; i++) {
+			ByteBuffer reply = replyPool.acquire();
+			int length = Message.size;
+			if (framed) {
+				// the header lies past the limit left by the last frame
+				frames.limit(limit);
+				length = frames.getInt(position);
+				reply.putLong(frames.getLong(position + 4));
+				position += Frame.HEADER;
+			}
+			frames.limit(position + length).position(position);
+			if (framed)
+				Hash.digest(engine, frames, reply);
+			else
+				Hash.hash(engine, frames, reply);
+			reply.flip();
+			replies[i] = reply;
+			position += length;
+		}
+		return position;
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * Splits a batch in halves until a piece is a few frames, the pieces
+	 * hash through their own views of the buffer.
+	 */
+	private static final class Batch extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Frames hashed by one task without splitting further.
+		 */
+		final private static int LEAF = 2;
+
+		final private DigestEngine engine;
+
+		final private boolean framed;
+
+		final private ByteBuffer inbound;
+
+		/**
+		 * Where each frame begins, and where the last ends.
+		 */
+		final private int[] offsets;
+
+		final private BufferPool replyPool;
+
+		final private ByteBuffer[] replies;
+
+		final private int from;
+
+		final private int end;
+
+		Batch(DigestEngine engine, boolean framed, ByteBuffer inbound, int[] offsets, BufferPool replyPool,
+				ByteBuffer[] replies, int from, int end) {
+			this.engine = engine;
+			this.framed = framed;
+			this.inbound = inbound;
+			this.offsets = offsets;
+			this.replyPool = replyPool;
+			this.replies = replies;
+			this.from = from;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (this.end - this.from <= LEAF) {
+				hashRange(this.engine, this.framed, this.inbound.duplicate(), this.offsets[this.from],
+						this.replyPool, this.replies, this.from, this.end);
+				return;
+			}
+			int middle = (this.from + this.end) >>> 1;
+			Batch left = new Batch(this.engine, this.framed, this.inbound, this.offsets, this.replyPool,
+					this.replies, this.from, middle);
+			left.fork();
+			new Batch(this.engine, this.framed, this.inbound, this.offsets, this.replyPool, this.replies, middle,
+					this.end).compute();
+			left.join();
+		}
+
+	}
+
+}
@@ -5,10 +5,23 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
+import cs455.scaling.msg.Frame;
 import cs455.scaling.msg.Message;
+import cs455.scaling.server.Connection;
 import cs455.scaling.server.NioServer;
 import cs455.scaling.server.TaskManager;
 
+/**
+ * Reads everything the client's socket has to offer into the
+ * connection's direct accumulation buffer, up to one read batch of
+ * frames, and passes the complete frames on to be hashed where they lie.
+ * The payload is never copied. The read claim is kept until the frames
+ * have been hashed, since until then the buffer cannot take more data.
+ * Each connection reuses one read task and one hash task. The first
+ * bytes of a connection may be a version 2 hello or a digest handshake,
+ * see {@link Connection#greet()}, and are answered before any frame.
+ */
+
 public class ReadTask extends Task {
 	
 	final private NioServer server;
@@ -19,23 +32,49 @@ public class ReadTask extends Task {
 	}
 
 	public void exec(TaskManager manager) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		ByteBuffer bytes = ByteBuffer.allocate(Message.size);
+		Connection connection = super.connection();
+		SocketChannel socketChannel = connection.getChannel();
+		ByteBuffer inbound = connection.getInbound();
 		int read = 0;
+		long bytes = 0;
 		try {
-			while (bytes.hasRemaining() && read != -1){
-				read = socketChannel.read(bytes);
+			// never read more than one batch, the buffer holds one batch of
+			// version 1 frames or the largest version 2 frame
+			while (inbound.hasRemaining()) {
+				read = socketChannel.read(inbound);
+				if (read == -1)
+					throw new IOException();
+				if (read == 0)
+					break;
+				bytes += read;
 			}
-			if (read == -1)
-				throw new IOException();
 		} catch (IOException e) {
-			this.server.clientDisconnected();
-			super.closeKey();
+			connection.close();
+			return;
+		}
+		if (connection.isGreeting() && connection.greet() == false) {
+			manager.getMetrics().countRead(0, bytes);
+			connection.endRead();
+			return;
+		}
+		int count = inbound.position() / Message.size;
+		if (connection.isFramed())
+			count = Frame.count(inbound, inbound.position(), connection.getMaxPayload());
+		if (count < 0) {
+			System.err.println("[ ERROR ] Client sent a frame too large, closing it.");
+			connection.close();
+			return;
+		}
+		manager.getMetrics().countRead(count, bytes);
+		connection.countRead(count);
+		if (count == 0) {
+			connection.endRead();
 			return;
 		}
-		key.attach(null);
-		bytes.rewind();
-		manager.enqueueTask(new SendTask(key, bytes));
+		inbound.flip();
+		HashTask hash = connection.getHashTask();
+		hash.setCount(count);
+		manager.enqueueHash(hash);
 	}
 
 }
@@ -1,38 +1,43 @@
 package cs455.scaling.task;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
 
-import cs455.scaling.msg.Hash;
 import cs455.scaling.server.TaskManager;
 
 public class SendTask extends Task {
 
-	public SendTask(SelectionKey key, ByteBuffer msg) {
+	/**
+	 * The hash replies, in the order the frames arrived.
+	 */
+	final private ByteBuffer[] replies;
+
+	final private int count;
+
+	/**
+	 * @param replies
+	 *            pooled reply buffers ready to be written, in the order
+	 *            their frames arrived
+	 */
+	public SendTask(SelectionKey key, ByteBuffer[] replies, int count) {
 		super(TaskType.WRITE, key);
-		super.msg = msg;
-		super.hash = Hash.toHash(msg.array());
-//		System.out.println("[ HASH ] "+super.hash); // PRINT HASH
+		this.replies = replies;
+		this.count = count;
+	}
+
+	/**
+	 * @return the number of replies
+	 */
+	public int getCost() {
+		return this.count;
 	}
 
+	/**
+	 * Hand the replies to the connection, which writes them together now or
+	 * as soon as the client's socket has room.
+	 */
 	public void exec(TaskManager manager) {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		ByteBuffer bytes = ByteBuffer.wrap(super.hash.getBytes());
-		try {
-			socketChannel.write(bytes);
-			if (bytes.remaining() > 0)
-				throw new Exception();
-		} catch (IOException e) {
-			System.err.println("[ ERROR ] Fail to send.");
-			super.closeKey();
-			return;
-		} catch (Exception e) {
-			System.err.println("[ ERROR ] Client buffer is full.");
-			return;
-		}
-		manager.incrementSent();
+		super.connection().send(this.replies, this.count);
 	}
 
 }
@@ -3,6 +3,7 @@ package cs455.scaling.task;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 
+import cs455.scaling.server.Connection;
 import cs455.scaling.server.TaskManager;
 
 public abstract class Task {
@@ -19,6 +20,11 @@ public abstract class Task {
 	
 	protected String hash;
 
+	/**
+	 * When the task was queued, in {@link System#nanoTime()} terms.
+	 */
+	private long queuedAt;
+
 	public Task(TaskType type, SelectionKey key) {
 		this.type = type;
 		this.key = key;
@@ -30,6 +36,31 @@ public abstract class Task {
 		this.msg = msg;
 	}
 
+	/**
+	 * @return the client this task works for
+	 */
+	final public SelectionKey getKey() {
+		return this.key;
+	}
+
+	/**
+	 * What running this task costs relative to other tasks, used to share
+	 * the processors fairly between clients.
+	 * 
+	 * @return 1 unless the task handles a batch of frames
+	 */
+	public int getCost() {
+		return 1;
+	}
+
+	final public void markQueued() {
+		this.queuedAt = System.nanoTime();
+	}
+
+	final public long getQueuedAt() {
+		return this.queuedAt;
+	}
+
 	final public String toString() {
 		return "Task [ "+"type: "+type+"]";
 	}
@@ -38,6 +69,13 @@ public abstract class Task {
 		this.key.cancel();
 	}
 
+	/**
+	 * @return the server side state attached to the key
+	 */
+	final protected Connection connection() {
+		return (Connection) this.key.attachment();
+	}
+
 	abstract public void exec(TaskManager manager);
 
 }
@@ -0,0 +1,241 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A striped pool of equally sized direct {@link ByteBuffer}s. A thread
+ * borrows from and returns to the stripe picked by its id so processors
+ * rarely meet on the same lock, and a buffer returned by a different
+ * thread than the one that borrowed it simply lands on that thread's
+ * stripe. Once the pool is warm borrowing allocates nothing.
+ * 
+ * In debug mode every borrowed buffer is tracked with the stack of the
+ * borrower so leaks and double releases can be reported.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class BufferPool {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The capacity of every buffer in the pool.
+	 */
+	final private int bufferSize;
+
+	/**
+	 * Independently locked stacks of free buffers.
+	 */
+	final private Stripe[] stripes;
+
+	/**
+	 * stripes.length - 1
+	 */
+	final private int mask;
+
+	/**
+	 * Borrowed buffers and where they were borrowed, null unless debugging.
+	 */
+	final private Map<ByteBuffer, Lease> leases;
+
+	/**
+	 * Borrows served from the pool.
+	 */
+	final private LongAdder hits;
+
+	/**
+	 * Borrows that had to allocate.
+	 */
+	final private LongAdder misses;
+
+	/**
+	 * Returns that found every stripe full and were left to the GC.
+	 */
+	final private LongAdder dropped;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param bufferSize
+	 *            capacity of each buffer
+	 * @param stripes
+	 *            number of stripes, rounded up to a power of two
+	 * @param perStripe
+	 *            free buffers kept per stripe
+	 * @param debug
+	 *            track every borrowed buffer
+	 */
+	public BufferPool(int bufferSize, int stripes, int perStripe, boolean debug) {
+		int count = Integer.highestOneBit(Math.max(1, stripes));
+		if (count < stripes)
+			count <<= 1;
+		this.bufferSize = bufferSize;
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			this.stripes[i] = new Stripe(perStripe);
+		this.mask = count - 1;
+		this.leases = debug ? new IdentityHashMap<ByteBuffer, Lease>() : null;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.dropped = new LongAdder();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Borrow a cleared buffer.
+	 * 
+	 * @return a buffer with position 0 and limit at capacity
+	 */
+	public ByteBuffer acquire() {
+		int home = this.home();
+		ByteBuffer buffer = null;
+		for (int i = 0; i <= this.mask && buffer == null; i++)
+			buffer = this.stripes[(home + i) & this.mask].pop();
+		if (buffer == null) {
+			this.misses.increment();
+			buffer = ByteBuffer.allocateDirect(this.bufferSize);
+		} else {
+			this.hits.increment();
+			buffer.clear();
+		}
+		if (this.leases != null) {
+			synchronized (this.leases) {
+				this.leases.put(buffer, new Lease());
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back. The caller must not touch it afterwards.
+	 * 
+	 * @param buffer
+	 *            a buffer from {@link #acquire()}
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		if (this.leases != null) {
+			Lease lease;
+			synchronized (this.leases) {
+				lease = this.leases.remove(buffer);
+			}
+			if (lease == null) {
+				new IllegalStateException("[ ERROR ] Buffer released twice or not from this pool.")
+						.printStackTrace();
+				return;
+			}
+		}
+		int home = this.home();
+		for (int i = 0; i <= this.mask; i++)
+			if (this.stripes[(home + i) & this.mask].push(buffer))
+				return;
+		this.dropped.increment();
+	}
+
+	/**
+	 * Print every buffer that has been borrowed for longer than the given
+	 * age along with the stack that borrowed it. Only works in debug mode.
+	 * 
+	 * @param olderThan
+	 *            minimum age in milliseconds
+	 * @return the number of suspected leaks
+	 */
+	public int reportLeaks(long olderThan) {
+		if (this.leases == null)
+			return 0;
+		long now = System.currentTimeMillis();
+		int leaks = 0;
+		synchronized (this.leases) {
+			for (Lease lease : this.leases.values()) {
+				if (now - lease.time < olderThan)
+					continue;
+				leaks++;
+				System.err.println("[ LEAK ] Buffer held for " + (now - lease.time) + " ms");
+				lease.site.printStackTrace();
+			}
+		}
+		return leaks;
+	}
+
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	public String getInfo() {
+		String info = "[ pool " + this.bufferSize + "B hits: " + this.hits.sum() + " misses: " + this.misses.sum()
+				+ " dropped: " + this.dropped.sum();
+		if (this.leases != null) {
+			synchronized (this.leases) {
+				info += " outstanding: " + this.leases.size();
+			}
+		}
+		return info + " ]";
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	private int home() {
+		return (int) Thread.currentThread().getId() & this.mask;
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * A bounded stack of free buffers.
+	 */
+	private static final class Stripe {
+
+		final private ByteBuffer[] free;
+
+		private int top;
+
+		Stripe(int size) {
+			this.free = new ByteBuffer[size];
+			this.top = 0;
+		}
+
+		synchronized ByteBuffer pop() {
+			if (this.top == 0)
+				return null;
+			ByteBuffer buffer = this.free[--this.top];
+			this.free[this.top] = null;
+			return buffer;
+		}
+
+		synchronized boolean push(ByteBuffer buffer) {
+			if (this.top == this.free.length)
+				return false;
+			this.free[this.top++] = buffer;
+			return true;
+		}
+
+	}
+
+	/**
+	 * Who borrowed a buffer and when.
+	 */
+	private static final class Lease {
+
+		final long time;
+
+		final Throwable site;
+
+		Lease() {
+			this.time = System.currentTimeMillis();
+			this.site = new Throwable("Borrowed by " + Thread.currentThread().getName());
+		}
+
+	}
+
+}
@@ -0,0 +1,284 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free open addressing table from a 20 byte digest to the time it
+ * was sent. Keys are kept as primitives, so putting and removing allocate
+ * nothing. A slot is claimed with a CAS on its state before its key and
+ * time are written, and published by the volatile write of its new state,
+ * so any number of threads may put and remove at once. Every change of
+ * state also bumps a generation kept in the state's high bits, so a CAS
+ * can never succeed on a slot that was answered and reused meanwhile.
+ * <p>
+ * Probing is linear but never goes further than {@link #MAX_PROBE} slots
+ * from a digest's home slot, so every operation is O(1) however many
+ * answered slots the table holds. Answered and expired slots keep their
+ * key until they are reused, which is how a repeated or late reply is
+ * told apart from one that was never sent.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class DigestTable {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Returned by {@link #remove} when the digest was not outstanding.
+	 */
+	final public static long MISSING = Long.MIN_VALUE;
+
+	/**
+	 * Slots searched from a digest's home slot.
+	 */
+	final public static int MAX_PROBE = 32;
+
+	/**
+	 * Length of the keys.
+	 */
+	final public static int KEY_SIZE = 20;
+
+	final private static int EMPTY = 0;
+
+	final private static int BUSY = 1;
+
+	final private static int FULL = 2;
+
+	final private static int ANSWERED = 3;
+
+	final private static int EXPIRED = 4;
+
+	/**
+	 * The low bits of a state that hold its kind, the rest count changes.
+	 */
+	final private static int KIND = 7;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * One of EMPTY, BUSY, FULL, ANSWERED or EXPIRED per slot, with its
+	 * generation.
+	 */
+	final private AtomicIntegerArray states;
+
+	/**
+	 * Key bytes 0 to 7, 8 to 15 and 16 to 19 of every slot.
+	 */
+	final private long[] first;
+
+	final private long[] second;
+
+	final private int[] third;
+
+	/**
+	 * When each slot's digest was put.
+	 */
+	final private long[] sentAt;
+
+	/**
+	 * states.length() - 1
+	 */
+	final private int mask;
+
+	final private LongAdder unknownCount;
+
+	final private LongAdder duplicateCount;
+
+	final private LongAdder lateCount;
+
+	final private LongAdder expiredCount;
+
+	final private LongAdder overflowCount;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param size
+	 *            the minimum capacity, rounded up to a power of two. Keep
+	 *            it at twice the most digests expected to be outstanding.
+	 */
+	public DigestTable(int size) {
+		if (size < 1 || size > (1 << 30))
+			throw new IllegalArgumentException("Table size out of range: " + size);
+		int capacity = Math.max(MAX_PROBE, Integer.highestOneBit(size - 1) << 1);
+		this.states = new AtomicIntegerArray(capacity);
+		this.first = new long[capacity];
+		this.second = new long[capacity];
+		this.third = new int[capacity];
+		this.sentAt = new long[capacity];
+		this.mask = capacity - 1;
+		this.unknownCount = new LongAdder();
+		this.duplicateCount = new LongAdder();
+		this.lateCount = new LongAdder();
+		this.expiredCount = new LongAdder();
+		this.overflowCount = new LongAdder();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Record a digest as outstanding.
+	 *
+	 * @param digest
+	 *            holds {@link #KEY_SIZE} bytes at offset
+	 * @param time
+	 *            when it was sent
+	 * @return false if every slot near the digest's home is outstanding,
+	 *         the digest is then counted as an overflow and not kept
+	 */
+	public boolean put(byte[] digest, int offset, long time) {
+		long a = word(digest, offset, 8);
+		long b = word(digest, offset + 8, 8);
+		int c = (int) word(digest, offset + 16, 4);
+		int home = (int) a & this.mask;
+		for (int i = 0; i < MAX_PROBE; i++) {
+			int slot = (home + i) & this.mask;
+			int state = this.states.get(slot);
+			int kind = state & KIND;
+			if (kind == FULL || kind == BUSY)
+				continue;
+			int busy = next(state, BUSY);
+			if (this.states.compareAndSet(slot, state, busy)) {
+				this.first[slot] = a;
+				this.second[slot] = b;
+				this.third[slot] = c;
+				this.sentAt[slot] = time;
+				this.states.set(slot, next(busy, FULL));
+				return true;
+			}
+		}
+		this.overflowCount.increment();
+		return false;
+	}
+
+	/**
+	 * Take a digest out of the table when its reply arrives. A digest that
+	 * is not outstanding is counted as a duplicate if it was already
+	 * answered, as late if it had expired and as unknown otherwise.
+	 *
+	 * @param digest
+	 *            holds {@link #KEY_SIZE} bytes at offset
+	 * @return when the digest was put, or {@link #MISSING}
+	 */
+	public long remove(byte[] digest, int offset) {
+		long a = word(digest, offset, 8);
+		long b = word(digest, offset + 8, 8);
+		int c = (int) word(digest, offset + 16, 4);
+		int home = (int) a & this.mask;
+		int seen = EMPTY;
+		for (int i = 0; i < MAX_PROBE; i++) {
+			int slot = (home + i) & this.mask;
+			int state = this.states.get(slot);
+			int kind = state & KIND;
+			if (kind == EMPTY)
+				break;
+			if (kind == BUSY || this.matches(slot, a, b, c) == false)
+				continue;
+			if (kind == FULL) {
+				long time = this.sentAt[slot];
+				int answered = next(state, ANSWERED);
+				if (this.states.compareAndSet(slot, state, answered))
+					return time;
+				// another thread answered or expired it first
+				int now = this.states.get(slot);
+				if (now == answered || now == next(state, EXPIRED))
+					seen = now & KIND;
+			} else if (this.states.get(slot) == state) {
+				// the key was read while the slot still held it
+				seen = kind;
+			}
+		}
+		if (seen == ANSWERED)
+			this.duplicateCount.increment();
+		else if (seen == EXPIRED)
+			this.lateCount.increment();
+		else
+			this.unknownCount.increment();
+		return MISSING;
+	}
+
+	/**
+	 * Count a reply that could not even be decoded to a digest as unknown,
+	 * so a corrupt reply shows up with the ones that matched nothing.
+	 */
+	public void countUnknown() {
+		this.unknownCount.increment();
+	}
+
+	/**
+	 * Give up on every digest put before a time. Their slots can be reused
+	 * and a reply that still arrives is counted as late.
+	 *
+	 * @param before
+	 *            digests put earlier than this expire
+	 * @return how many expired
+	 */
+	public int expire(long before) {
+		int expired = 0;
+		for (int slot = 0; slot <= this.mask; slot++) {
+			int state = this.states.get(slot);
+			if ((state & KIND) != FULL)
+				continue;
+			long time = this.sentAt[slot];
+			if (time - before < 0 && this.states.compareAndSet(slot, state, next(state, EXPIRED)))
+				expired++;
+		}
+		this.expiredCount.add(expired);
+		return expired;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the digests currently outstanding, counted slot by slot
+	 */
+	public int getOutstanding() {
+		int count = 0;
+		for (int slot = 0; slot <= this.mask; slot++)
+			if ((this.states.get(slot) & KIND) == FULL)
+				count++;
+		return count;
+	}
+
+	public int getCapacity() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * Counts of replies that could not be matched and digests that were
+	 * dropped since the last call, which resets them.
+	 */
+	public String getInfo() {
+		return "Unknown: " + this.unknownCount.sumThenReset() + ", Duplicate: "
+				+ this.duplicateCount.sumThenReset() + ", Late: " + this.lateCount.sumThenReset()
+				+ ", Expired: " + this.expiredCount.sumThenReset() + ", Overflow: "
+				+ this.overflowCount.sumThenReset();
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * The state after one with the given kind.
+	 */
+	private static int next(int state, int kind) {
+		return ((state & ~KIND) + KIND + 1) | kind;
+	}
+
+	private boolean matches(int slot, long a, long b, int c) {
+		return this.first[slot] == a && this.second[slot] == b && this.third[slot] == c;
+	}
+
+	/**
+	 * Big endian value of length bytes.
+	 */
+	private static long word(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++)
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		return value;
+	}
+
+}
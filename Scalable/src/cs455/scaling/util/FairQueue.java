@@ -0,0 +1,328 @@
+package cs455.scaling.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A thread safe queue that is fair between flows, for example between
+ * the clients the tasks belong to. Every flow has its own FIFO and the
+ * flows are served by deficit round robin: on its turn a flow earns a
+ * quantum of credit and is served while its head item costs no more than
+ * the credit left. A client sending many large batches gets the same
+ * share of the processors as one sending a few small ones.
+ * <p>
+ * Each flow also has a cap on the cost it has queued, not the number of
+ * items, since a producer may only ever have an item or two queued for a
+ * flow but each may stand for a whole batch. Items are never refused
+ * for being over it; the producer asks {@link #throttle(Object)} before
+ * making more work for a flow and stops while it is over the cap. Once
+ * the flow has drained to half the cap the queue calls back so the
+ * producer can start again.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class FairQueue<T> implements TaskQueue<T> {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Items queued over all flows.
+	 */
+	private int count;
+
+	/**
+	 * The most items queued over all flows.
+	 */
+	final private int size;
+
+	/**
+	 * The most cost one flow may have queued before it is throttled.
+	 */
+	final private int perFlow;
+
+	/**
+	 * Credit a flow earns per turn, in the units of cost.
+	 */
+	final private int quantum;
+
+	/**
+	 * Flows with queued items, by their flow key.
+	 */
+	final private HashMap<Object, Flow<T>> flows;
+
+	/**
+	 * Flows with queued items in round robin order, the head is being
+	 * served.
+	 */
+	final private ArrayDeque<Flow<T>> active;
+
+	final private Function<T, Object> flowOf;
+
+	final private ToIntFunction<T> costOf;
+
+	/**
+	 * Called with a flow's key when a throttled flow has room again,
+	 * outside the queue's lock.
+	 */
+	final private Consumer<Object> onRoom;
+
+	final private Object lock;
+
+	/**
+	 * Flows currently throttled.
+	 */
+	private int throttled;
+
+	/**
+	 * Times a flow was throttled and turns a flow passed up for lack of
+	 * credit, since the queue was made.
+	 */
+	private long throttles;
+
+	private long carried;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param size
+	 *            the most items over all flows
+	 * @param perFlow
+	 *            the most cost one flow may have queued before it is
+	 *            throttled
+	 * @param quantum
+	 *            credit per turn, in the units of cost
+	 * @param flowOf
+	 *            the flow an item belongs to
+	 * @param costOf
+	 *            what serving an item costs, at least 1
+	 * @param onRoom
+	 *            told when a throttled flow has room again
+	 */
+	public FairQueue(int size, int perFlow, int quantum, Function<T, Object> flowOf, ToIntFunction<T> costOf,
+			Consumer<Object> onRoom) {
+		this.size = size;
+		this.perFlow = perFlow;
+		this.quantum = quantum;
+		this.flowOf = flowOf;
+		this.costOf = costOf;
+		this.onRoom = onRoom;
+		this.flows = new HashMap<Object, Flow<T>>();
+		this.active = new ArrayDeque<Flow<T>>();
+		this.lock = new Object();
+		this.count = 0;
+		this.throttled = 0;
+		this.throttles = 0;
+		this.carried = 0;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public void enqueue(T item) throws InterruptedException {
+		synchronized (this.lock) {
+			while (this.count == this.size) {
+				this.lock.wait();
+			}
+			this.add(item);
+		}
+	}
+
+	public T dequeue() throws InterruptedException {
+		Object room;
+		T item;
+		synchronized (this.lock) {
+			while (this.count == 0) {
+				this.lock.wait();
+			}
+			item = this.next();
+			room = this.roomFor(item);
+		}
+		if (room != null)
+			this.onRoom.accept(room);
+		return item;
+	}
+
+	public boolean offer(T item) {
+		synchronized (this.lock) {
+			if (this.count == this.size) {
+				return false;
+			}
+			this.add(item);
+			return true;
+		}
+	}
+
+	public T poll() {
+		Object room;
+		T item;
+		synchronized (this.lock) {
+			if (this.count == 0) {
+				return null;
+			}
+			item = this.next();
+			room = this.roomFor(item);
+		}
+		if (room != null)
+			this.onRoom.accept(room);
+		return item;
+	}
+
+	/**
+	 * Called before making more work for a flow. A flow whose queued cost
+	 * is at its cap is marked throttled and {@link #onRoom} is called for
+	 * it once it has drained to half the cap.
+	 *
+	 * @return true if the flow is at its cap and should wait
+	 */
+	public boolean throttle(Object key) {
+		synchronized (this.lock) {
+			Flow<T> flow = this.flows.get(key);
+			if (flow == null || flow.cost < this.perFlow)
+				return false;
+			if (flow.throttled == false) {
+				flow.throttled = true;
+				this.throttled++;
+				this.throttles++;
+			}
+			return true;
+		}
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	public int getCount() {
+		synchronized (this.lock) {
+			return this.count;
+		}
+	}
+
+	public int getCapacity() {
+		return this.size;
+	}
+
+	/**
+	 * @return flows with items queued, throttled flows, the caps, and how
+	 *         often flows were throttled or passed up since the start
+	 */
+	public String getInfo() {
+		synchronized (this.lock) {
+			return "[ fair queue: " + this.count + "/" + this.size + " clients: " + this.flows.size()
+					+ " throttled: " + this.throttled + " per client cap: " + this.perFlow + " quantum: "
+					+ this.quantum + " throttles: " + this.throttles + " carried turns: " + this.carried + " ]";
+		}
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	private void add(T item) {
+		if (this.count == 0) {
+			this.lock.notifyAll();
+		}
+		Object key = this.flowOf.apply(item);
+		Flow<T> flow = this.flows.get(key);
+		if (flow == null) {
+			flow = new Flow<T>();
+			this.flows.put(key, flow);
+			this.active.addLast(flow);
+		}
+		flow.items.addLast(item);
+		flow.cost += Math.max(1, this.costOf.applyAsInt(item));
+		this.count++;
+	}
+
+	/**
+	 * Deficit round robin over the active flows, holding the lock.
+	 */
+	private T next() {
+		if (this.count == this.size) {
+			this.lock.notifyAll();
+		}
+		while (true) {
+			Flow<T> flow = this.active.peekFirst();
+			if (flow.serving == false) {
+				flow.deficit += this.quantum;
+				flow.serving = true;
+			}
+			T item = flow.items.peekFirst();
+			int cost = Math.max(1, this.costOf.applyAsInt(item));
+			if (cost <= flow.deficit) {
+				flow.items.pollFirst();
+				flow.deficit -= cost;
+				flow.cost -= cost;
+				this.count--;
+				if (flow.items.isEmpty()) {
+					// an idle flow keeps no credit
+					flow.deficit = 0;
+					flow.serving = false;
+					this.active.pollFirst();
+				}
+				return item;
+			}
+			// turn over, the credit carries to the next turn
+			flow.serving = false;
+			this.carried++;
+			this.active.addLast(this.active.pollFirst());
+		}
+	}
+
+	/**
+	 * After taking an item, release its flow's throttle once it has
+	 * drained to half the cap and forget flows with nothing queued.
+	 *
+	 * @return the flow's key if the producer should be told, or null
+	 */
+	private Object roomFor(T item) {
+		Object key = this.flowOf.apply(item);
+		Flow<T> flow = this.flows.get(key);
+		Object room = null;
+		if (flow.throttled && flow.cost <= this.perFlow / 2) {
+			flow.throttled = false;
+			this.throttled--;
+			room = key;
+		}
+		if (flow.items.isEmpty())
+			this.flows.remove(key);
+		return room;
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * One flow's items and credit.
+	 */
+	private static final class Flow<T> {
+
+		final ArrayDeque<T> items;
+
+		/**
+		 * What the queued items cost together.
+		 */
+		int cost;
+
+		/**
+		 * Credit left, carried between turns while the flow has items.
+		 */
+		int deficit;
+
+		/**
+		 * The flow's turn has started and its quantum was added.
+		 */
+		boolean serving;
+
+		boolean throttled;
+
+		Flow() {
+			this.items = new ArrayDeque<T>();
+			this.cost = 0;
+			this.deficit = 0;
+			this.serving = false;
+			this.throttled = false;
+		}
+
+	}
+
+}
@@ -0,0 +1,200 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed memory, lock free histogram of positive long values in the
+ * style of HdrHistogram. Values are bucketed log linearly: every power of
+ * two range is split into 64 equal sub buckets, so any recorded value is
+ * reported to within about 1.5% of its real value. Recording is a single
+ * atomic increment and can be done from any number of threads.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class Histogram {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Bits of precision kept for every value.
+	 */
+	final private static int SUB_BUCKET_BITS = 7;
+
+	final private static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	final private static int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+
+	final private static int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_BITS;
+
+	final private static long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Number of recordings per bucket.
+	 */
+	final private AtomicLongArray counts;
+
+	/**
+	 * Values above this are recorded as this.
+	 */
+	final private long highest;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param highest
+	 *            the largest value that can be told apart, anything larger
+	 *            is clamped
+	 */
+	public Histogram(long highest) {
+		this.highest = Math.max(highest, SUB_BUCKET_COUNT);
+		this.counts = new AtomicLongArray(index(this.highest) + 1);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Record one value. Negative values count as 0.
+	 */
+	public void record(long value) {
+		this.counts.incrementAndGet(index(Math.max(0, Math.min(value, this.highest))));
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < this.counts.length(); i++)
+			count += this.counts.get(i);
+		return count;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the value at or below which the given percent of recordings
+	 *         fall, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = this.snapshot();
+		long total = 0;
+		for (long c : snapshot)
+			total += c;
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= target)
+				return highestEquivalent(i);
+		}
+		return highestEquivalent(snapshot.length - 1);
+	}
+
+	/**
+	 * @return the largest recorded value, to bucket precision
+	 */
+	public long getMax() {
+		for (int i = this.counts.length() - 1; i >= 0; i--)
+			if (this.counts.get(i) > 0)
+				return highestEquivalent(i);
+		return 0;
+	}
+
+	/**
+	 * @return the mean recorded value, to bucket precision
+	 */
+	public double getMean() {
+		long total = 0;
+		double sum = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			long c = this.counts.get(i);
+			total += c;
+			sum += c * (double) ((lowestEquivalent(i) + highestEquivalent(i)) / 2);
+		}
+		return total == 0 ? 0 : sum / total;
+	}
+
+	/**
+	 * Add every recording of another histogram with the same range.
+	 */
+	public void add(Histogram other) {
+		int n = Math.min(this.counts.length(), other.counts.length());
+		for (int i = 0; i < n; i++) {
+			long c = other.counts.get(i);
+			if (c != 0)
+				this.counts.addAndGet(i, c);
+		}
+	}
+
+	/**
+	 * Move every recording into another histogram with the same range,
+	 * replacing what it held. Each bucket is swapped atomically, so a value
+	 * recorded concurrently lands in exactly one of the two. Used to print
+	 * one interval at a time while recording continues.
+	 * 
+	 * @param interval
+	 *            receives the recordings since the last drain
+	 */
+	public void drainTo(Histogram interval) {
+		int n = Math.min(this.counts.length(), interval.counts.length());
+		for (int i = 0; i < n; i++)
+			interval.counts.set(i, this.counts.getAndSet(i, 0));
+	}
+
+	/**
+	 * Forget every recording. Values recorded while this runs may or may
+	 * not survive.
+	 */
+	public void reset() {
+		for (int i = 0; i < this.counts.length(); i++)
+			this.counts.set(i, 0);
+	}
+
+	/**
+	 * p50, p99, p99.9 and max with values divided by the given unit.
+	 * 
+	 * @param unit
+	 *            for example 1000.0 to print microsecond values as ms
+	 */
+	public String getInfo(double unit) {
+		return String.format("p50: %.3f p99: %.3f p99.9: %.3f max: %.3f", this.getValueAtPercentile(50) / unit,
+				this.getValueAtPercentile(99) / unit, this.getValueAtPercentile(99.9) / unit, this.getMax() / unit);
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	private long[] snapshot() {
+		long[] snapshot = new long[this.counts.length()];
+		for (int i = 0; i < snapshot.length; i++)
+			snapshot[i] = this.counts.get(i);
+		return snapshot;
+	}
+
+	private static int index(long value) {
+		int bucket = 63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - SUB_BUCKET_HALF_BITS;
+		int sub = (int) (value >>> bucket);
+		return (bucket << SUB_BUCKET_HALF_BITS) + sub;
+	}
+
+	private static long lowestEquivalent(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int bucket = (index >> SUB_BUCKET_HALF_BITS) - 1;
+		long sub = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+		return sub << bucket;
+	}
+
+	private static long highestEquivalent(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int bucket = (index >> SUB_BUCKET_HALF_BITS) - 1;
+		return lowestEquivalent(index) + (1L << bucket) - 1;
+	}
+
+}
@@ -1,5 +1,9 @@
 package cs455.scaling.util;
 
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import cs455.scaling.server.TaskManager;
 import cs455.scaling.task.Task;
 
@@ -26,6 +30,41 @@ public final class Processor extends Thread {
 	 * TODO write more comments
 	 */
 	final private TaskManager manager;
+
+	/**
+	 * The work stealing pool this processor belongs to, null when tasks
+	 * are handed over by the {@link TaskManager} dispatcher.
+	 */
+	final private StealingPool pool;
+
+	/**
+	 * Local tasks when in a {@link StealingPool}. The owner takes from the
+	 * head, thieves take from the tail.
+	 */
+	final private ConcurrentLinkedDeque<Task> deque;
+
+	/**
+	 * The size of the deque, kept separately since the deque's own size()
+	 * walks every node.
+	 */
+	final private AtomicInteger queued;
+
+	/**
+	 * Tasks this processor has taken from its peers. Only written by this
+	 * thread.
+	 */
+	private volatile long steals;
+
+	/**
+	 * True while parked waiting for work.
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * Set when the {@link ThreadPool} shrinks or the pool is closed, the
+	 * run loop ends instead of waiting for another task.
+	 */
+	private volatile boolean retired;
 	
 	// CONSTRUCTORS *****************************************************
 
@@ -36,10 +75,28 @@ public final class Processor extends Thread {
 	 *            a reference to the {@link TaskManager}
 	 */
 	public Processor(TaskManager manager) {
+		this(manager, null);
+	}
+
+	/**
+	 * Constructs a processor that owns a deque in a work stealing pool.
+	 * 
+	 * @param manager
+	 *            a reference to the {@link TaskManager}
+	 * @param pool
+	 *            the pool to steal from when idle
+	 */
+	public Processor(TaskManager manager, StealingPool pool) {
 		setName("Processor-"+getId());
 		this.manager = manager;
 		this.lock = new Object();
 		this.currentTask = null;
+		this.pool = pool;
+		this.deque = new ConcurrentLinkedDeque<Task>();
+		this.queued = new AtomicInteger();
+		this.steals = 0;
+		this.idle = false;
+		this.retired = false;
 	}
 
 	// INSTANCE METHODS *************************************************
@@ -54,17 +111,67 @@ public final class Processor extends Thread {
 			this.lock.notify();
 		}
 	}
+
+	/**
+	 * Stop once idle. Only called on a processor without a task from the
+	 * dispatcher, so no handed over task is lost. A work stealing
+	 * processor stops after the task it is running.
+	 */
+	void retire() {
+		synchronized (this.lock) {
+			this.retired = true;
+			this.lock.notify();
+		}
+		LockSupport.unpark(this);
+	}
+
+	StealingPool getPool() {
+		return this.pool;
+	}
+
+	void push(Task task) {
+		this.queued.incrementAndGet();
+		this.deque.offerLast(task);
+	}
+
+	Task stealFrom() {
+		Task task = this.deque.pollLast();
+		if (task != null)
+			this.queued.decrementAndGet();
+		return task;
+	}
+
+	boolean isIdle() {
+		return this.idle;
+	}
+
+	public int getQueued() {
+		return this.queued.get();
+	}
+
+	public long getSteals() {
+		return this.steals;
+	}
 	
 	// RUN METHODS ******************************************************
 
 	public void run() {
+		if (this.pool != null) {
+			this.runStealing();
+			return;
+		}
 		try {
 			while(Boolean.toString(true).equals("true")) {
 				synchronized (this.lock) {
-					while (this.currentTask == null)
+					while (this.currentTask == null && this.retired == false)
 						this.lock.wait();
+					if (this.retired)
+						return;
 				}
+				long begin = System.nanoTime();
 				this.currentTask.exec(this.manager);
+				this.manager.taskDone();
+				this.manager.countBusy(System.nanoTime() - begin);
 				this.currentTask = null;
 				this.manager.taskComplete(this);
 			}
@@ -73,4 +180,38 @@ public final class Processor extends Thread {
 		}
 	}
 
-}
\ No newline at end of file
+	// PRIVATE METHODS -----------------------------------
+
+	private void runStealing() {
+		while (this.isInterrupted() == false && this.retired == false) {
+			Task task = this.nextTask();
+			if (task == null) {
+				// publish idle before the last look so a submitter either
+				// sees us idle or we see its task
+				this.idle = true;
+				task = this.nextTask();
+				if (task == null)
+					LockSupport.parkNanos(this, StealingPool.PARK_NANOS);
+				this.idle = false;
+			}
+			if (task != null) {
+				this.manager.countWait(task);
+				task.exec(this.manager);
+				this.manager.taskDone();
+			}
+		}
+	}
+
+	private Task nextTask() {
+		Task task = this.deque.pollFirst();
+		if (task != null) {
+			this.queued.decrementAndGet();
+			return task;
+		}
+		task = this.pool.steal(this);
+		if (task != null)
+			this.steals++;
+		return task;
+	}
+
+}
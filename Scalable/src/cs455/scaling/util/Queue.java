@@ -9,7 +9,7 @@ import java.util.LinkedList;
  *
  */
 
-public final class Queue<T> {
+public final class Queue<T> implements TaskQueue<T> {
 
 	/**
 	 * 
@@ -42,13 +42,17 @@ public final class Queue<T> {
 		}
 	}
 
+	public int getCapacity() {
+		return this.size;
+	}
+
 	public void enqueue(T item) throws InterruptedException {
 		synchronized (this.lock) {
 			while (this.queue.size() == this.size) {
 				this.lock.wait();
 			}
 			if (this.queue.size() == 0) {
-				this.lock.notify();
+				this.lock.notifyAll();
 			}
 			this.queue.add(item);	
 		}
@@ -60,7 +64,32 @@ public final class Queue<T> {
 				this.lock.wait();
 			}
 			if (this.queue.size() == this.size) {
-				this.lock.notify();
+				this.lock.notifyAll();
+			}
+			return this.queue.remove(0);
+		}
+	}
+
+	public boolean offer(T item) {
+		synchronized (this.lock) {
+			if (this.queue.size() == this.size) {
+				return false;
+			}
+			if (this.queue.size() == 0) {
+				this.lock.notifyAll();
+			}
+			this.queue.add(item);
+			return true;
+		}
+	}
+
+	public T poll() {
+		synchronized (this.lock) {
+			if (this.queue.size() == 0) {
+				return null;
+			}
+			if (this.queue.size() == this.size) {
+				this.lock.notifyAll();
 			}
 			return this.queue.remove(0);
 		}
@@ -0,0 +1,157 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock free multi producer multi consumer ring buffer. Every
+ * slot carries its own sequence number which tells a producer when the
+ * slot is free and a consumer when it has been published, so the only
+ * contended writes are the CAS on the padded head and tail cursors.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class RingQueue<T> implements TaskQueue<T> {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The slots, length is a power of two.
+	 */
+	final private Object[] buffer;
+
+	/**
+	 * Per slot sequence. A slot at index i is free for position p when its
+	 * sequence is p and holds the item for position p when it is p + 1.
+	 */
+	final private AtomicLongArray sequences;
+
+	/**
+	 * buffer.length - 1
+	 */
+	final private int mask;
+
+	/**
+	 * The next position a producer will claim.
+	 */
+	final private Sequence tail;
+
+	/**
+	 * The next position a consumer will claim.
+	 */
+	final private Sequence head;
+
+	/**
+	 * Used by the blocking calls when the ring is full or empty.
+	 */
+	final private WaitStrategy waitStrategy;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param size
+	 *            the minimum capacity, rounded up to a power of two
+	 * @param waitStrategy
+	 *            how blocked producers and consumers wait
+	 */
+	public RingQueue(int size, WaitStrategy waitStrategy) {
+		if (size < 1 || size > (1 << 30))
+			throw new IllegalArgumentException("Ring size out of range: " + size);
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size)
+			capacity <<= 1;
+		this.buffer = new Object[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			this.sequences.set(i, i);
+		this.mask = capacity - 1;
+		this.tail = new Sequence(0);
+		this.head = new Sequence(0);
+		this.waitStrategy = waitStrategy;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public boolean offer(T item) {
+		if (item == null)
+			throw new NullPointerException();
+		long position = this.tail.get();
+		int index;
+		while (true) {
+			index = (int) position & this.mask;
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1))
+					break;
+				position = this.tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = this.tail.get();
+			}
+		}
+		this.buffer[index] = item;
+		this.sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long position = this.head.get();
+		int index;
+		while (true) {
+			index = (int) position & this.mask;
+			long difference = this.sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (this.head.compareAndSet(position, position + 1))
+					break;
+				position = this.head.get();
+			} else if (difference < 0) {
+				return null;
+			} else {
+				position = this.head.get();
+			}
+		}
+		T item = (T) this.buffer[index];
+		this.buffer[index] = null;
+		this.sequences.lazySet(index, position + this.mask + 1);
+		return item;
+	}
+
+	public void enqueue(T item) throws InterruptedException {
+		int counter = 0;
+		while (this.offer(item) == false) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			this.waitStrategy.idle(counter);
+			if (counter < Integer.MAX_VALUE)
+				counter++;
+		}
+	}
+
+	public T dequeue() throws InterruptedException {
+		int counter = 0;
+		T item;
+		while ((item = this.poll()) == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			this.waitStrategy.idle(counter);
+			if (counter < Integer.MAX_VALUE)
+				counter++;
+		}
+		return item;
+	}
+
+	public int getCount() {
+		long count = this.tail.get() - this.head.get();
+		if (count < 0)
+			return 0;
+		return (int) Math.min(count, this.buffer.length);
+	}
+
+	public int getCapacity() {
+		return this.buffer.length;
+	}
+
+}
@@ -0,0 +1,71 @@
+package cs455.scaling.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A long counter padded out to its own cache line so the producer and
+ * consumer cursors of a {@link RingQueue} never false share.
+ * 
+ * @author G van Andel
+ *
+ */
+
+abstract class SequenceLhsPadding {
+	protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class SequenceValue extends SequenceLhsPadding {
+	protected volatile long value;
+}
+
+public final class Sequence extends SequenceValue {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Handle on {@link SequenceValue#value} for ordered and CAS access.
+	 */
+	final private static VarHandle VALUE;
+
+	static {
+		try {
+			VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	protected long p9, p10, p11, p12, p13, p14, p15;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param initial
+	 *            the starting value
+	 */
+	public Sequence(long initial) {
+		VALUE.setRelease(this, initial);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public long get() {
+		return this.value;
+	}
+
+	public void set(long value) {
+		VALUE.setRelease(this, value);
+	}
+
+	public boolean compareAndSet(long expected, long value) {
+		return VALUE.compareAndSet(this, expected, value);
+	}
+
+	public String toString() {
+		return Long.toString(this.value);
+	}
+
+}
@@ -0,0 +1,155 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.server.TaskManager;
+import cs455.scaling.task.Task;
+
+/**
+ * One stage of a staged pipeline: a bounded queue of tasks and the
+ * threads that serve it and nothing else. Stages only meet through their
+ * queues, so a stage that is slow or blocked only holds its own threads.
+ * Each stage keeps its own queue depth, tasks served and service time.
+ *
+ * @author G van Andel
+ *
+ */
+
+public final class Stage {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	final private String name;
+
+	/**
+	 * Tasks waiting for a thread of this stage.
+	 */
+	final private TaskQueue<Task> queue;
+
+	final private Worker[] workers;
+
+	/**
+	 * Tasks finished since the last {@link #getInfo()}.
+	 */
+	final private LongAdder served;
+
+	/**
+	 * Nanoseconds spent in exec since the last {@link #getInfo()}.
+	 */
+	final private LongAdder busy;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Builds the stage, {@link #start()} starts its threads.
+	 *
+	 * @param name
+	 *            used to name the threads and in the status line
+	 * @param queue
+	 *            bounded queue feeding the stage
+	 * @param threads
+	 *            how many threads serve the queue
+	 * @param manager
+	 *            passed to every task
+	 */
+	public Stage(String name, TaskQueue<Task> queue, int threads, TaskManager manager) {
+		this.name = name;
+		this.queue = queue;
+		this.served = new LongAdder();
+		this.busy = new LongAdder();
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++)
+			this.workers[i] = new Worker(manager, name + "-" + i);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public void start() {
+		for (Worker worker : this.workers)
+			worker.start();
+	}
+
+	/**
+	 * Queue a task, waiting while the stage is full.
+	 */
+	public void submit(Task task) throws InterruptedException {
+		this.queue.enqueue(task);
+	}
+
+	/**
+	 * Queue a task unless the stage is full.
+	 *
+	 * @return false if the queue had no room
+	 */
+	public boolean offer(Task task) {
+		return this.queue.offer(task);
+	}
+
+	/**
+	 * Stop the threads, tasks still queued are dropped.
+	 */
+	public void close() {
+		for (Worker worker : this.workers)
+			worker.interrupt();
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return tasks waiting in the queue
+	 */
+	public int getCount() {
+		return this.queue.getCount();
+	}
+
+	public int getCapacity() {
+		return this.queue.getCapacity();
+	}
+
+	public int getThreads() {
+		return this.workers.length;
+	}
+
+	/**
+	 * Queue depth, tasks served and mean service time since the last
+	 * call, which resets them.
+	 */
+	public String getInfo() {
+		long served = this.served.sumThenReset();
+		long busy = this.busy.sumThenReset();
+		return String.format("[ %s depth: %d/%d threads: %d served: %d service: %.1f us ]", this.name,
+				this.queue.getCount(), this.queue.getCapacity(), this.workers.length, served,
+				served == 0 ? 0 : busy / 1000.0 / served);
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * Takes tasks off the stage's queue and runs them.
+	 */
+	private final class Worker extends Thread {
+
+		final private TaskManager manager;
+
+		Worker(TaskManager manager, String name) {
+			super(name);
+			this.manager = manager;
+		}
+
+		public void run() {
+			try {
+				while (this.isInterrupted() == false) {
+					Task task = Stage.this.queue.dequeue();
+					this.manager.countWait(task);
+					long begin = System.nanoTime();
+					task.exec(this.manager);
+					this.manager.taskDone();
+					Stage.this.busy.add(System.nanoTime() - begin);
+					Stage.this.served.increment();
+				}
+			} catch (InterruptedException e) {}
+		}
+
+	}
+
+}
@@ -0,0 +1,178 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.scaling.server.TaskManager;
+import cs455.scaling.task.Task;
+
+/**
+ * A pool of {@link Processor} threads that each own a deque of tasks.
+ * Tasks are handed straight to a processor by whichever thread produced
+ * them, no dispatcher sits in between. A processor that runs out of work
+ * steals from the tail of a peer's deque before parking.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public final class StealingPool {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Upper bound on how long an idle processor parks before looking for
+	 * work again, in case a wakeup raced with it going idle.
+	 */
+	final static long PARK_NANOS = 1000000;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The workers, each with its own deque.
+	 */
+	final private Processor[] processors;
+
+	/**
+	 * Round robin cursor used when no processor is idle.
+	 */
+	final private AtomicInteger next;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates the processors, {@link #start()} starts them.
+	 * 
+	 * @param manager
+	 *            handed to every task the processors run
+	 * @param size
+	 *            the number of processors
+	 */
+	public StealingPool(TaskManager manager, int size) {
+		this.processors = new Processor[size];
+		this.next = new AtomicInteger();
+		for (int i = 0; i < size; i++)
+			this.processors[i] = new Processor(manager, this);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public void start() {
+		for (Processor p : this.processors)
+			p.start();
+	}
+
+	/**
+	 * Hand a task to a processor. A processor submitting work keeps it on
+	 * its own deque, anything else prefers an idle processor.
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	public void submit(Task task) {
+		Thread current = Thread.currentThread();
+		if (current instanceof Processor && ((Processor) current).getPool() == this) {
+			((Processor) current).push(task);
+			this.wakeIdle(null);
+			return;
+		}
+		Processor target = this.pick();
+		target.push(task);
+		if (target.isIdle())
+			LockSupport.unpark(target);
+		else
+			this.wakeIdle(target);
+	}
+
+	/**
+	 * Take a task from some processor other than the thief.
+	 * 
+	 * @param thief
+	 *            the processor looking for work
+	 * @return a task or null if every deque was empty
+	 */
+	Task steal(Processor thief) {
+		int n = this.processors.length;
+		int start = ThreadLocalRandom.current().nextInt(n);
+		for (int i = 0; i < n; i++) {
+			Processor victim = this.processors[(start + i) % n];
+			if (victim == thief)
+				continue;
+			Task task = victim.stealFrom();
+			if (task != null)
+				return task;
+		}
+		return null;
+	}
+
+	/**
+	 * Stop every processor once it finishes the task it is running, tasks
+	 * left in the deques are dropped.
+	 */
+	public void close() {
+		for (Processor p : this.processors)
+			p.retire();
+	}
+
+	/**
+	 * @return tasks waiting across all deques
+	 */
+	public int getCount() {
+		int count = 0;
+		for (Processor p : this.processors)
+			count += p.getQueued();
+		return count;
+	}
+
+	/**
+	 * @return tasks taken from a peer's deque since startup
+	 */
+	public long getSteals() {
+		long steals = 0;
+		for (Processor p : this.processors)
+			steals += p.getSteals();
+		return steals;
+	}
+
+	/**
+	 * @return the number of processors
+	 */
+	public int getSize() {
+		return this.processors.length;
+	}
+
+	/**
+	 * Per processor queue depth and steal counts.
+	 */
+	public String getInfo() {
+		StringBuilder info = new StringBuilder("[ stealing pool");
+		for (Processor p : this.processors)
+			info.append(" ").append(p.getName()).append(": ").append(p.getQueued()).append("/")
+					.append(p.getSteals());
+		return info.append(" ]").toString();
+	}
+
+	// PRIVATE METHODS -----------------------------------
+
+	private Processor pick() {
+		int n = this.processors.length;
+		int start = Math.floorMod(this.next.getAndIncrement(), n);
+		for (int i = 0; i < n; i++) {
+			Processor p = this.processors[(start + i) % n];
+			if (p.isIdle())
+				return p;
+		}
+		return this.processors[start];
+	}
+
+	private void wakeIdle(Processor skip) {
+		for (Processor p : this.processors) {
+			if (p != skip && p.isIdle()) {
+				LockSupport.unpark(p);
+				return;
+			}
+		}
+	}
+
+}
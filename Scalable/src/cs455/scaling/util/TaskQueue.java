@@ -0,0 +1,60 @@
+package cs455.scaling.util;
+
+/**
+ * The contract shared by every queue that can sit between the
+ * {@link cs455.scaling.server.NioServer} and the {@link Processor}
+ * threads. The blocking calls are used by the dispatcher, the
+ * non-blocking calls by code that must never stall.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public interface TaskQueue<T> {
+
+	/**
+	 * Add an item, waiting while the queue is full.
+	 * 
+	 * @param item
+	 *            the item to add
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void enqueue(T item) throws InterruptedException;
+
+	/**
+	 * Remove the oldest item, waiting while the queue is empty.
+	 * 
+	 * @return the oldest item
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public T dequeue() throws InterruptedException;
+
+	/**
+	 * Add an item if there is room.
+	 * 
+	 * @param item
+	 *            the item to add
+	 * @return false if the queue was full
+	 */
+	public boolean offer(T item);
+
+	/**
+	 * Remove the oldest item if there is one.
+	 * 
+	 * @return the oldest item or null if the queue was empty
+	 */
+	public T poll();
+
+	/**
+	 * @return the number of items currently queued
+	 */
+	public int getCount();
+
+	/**
+	 * @return the maximum number of items the queue will hold
+	 */
+	public int getCapacity();
+
+}
@@ -5,7 +5,9 @@ import java.util.LinkedList;
 import cs455.scaling.server.TaskManager;
 
 /**
- * A thread safe thread pool
+ * A thread safe thread pool of idle {@link Processor} threads. The pool
+ * can be grown and shrunk while running, shrinking only ever retires
+ * processors that are idle.
  * 
  * @author G van Andel
  *
@@ -19,27 +21,47 @@ public final class ThreadPool {
 	final private LinkedList<Processor> queue;
 	
 	/**
-	 * 
+	 * Processors belonging to the pool, idle or busy.
+	 */
+	private int size;
+
+	/**
+	 * Handed to new processors.
 	 */
-	final private int size;
+	final private TaskManager manager;
 	
 	/**
 	 * 
 	 */
 	final private Object lock;
 
+	/**
+	 * Set by {@link #close()}, processors coming back are retired.
+	 */
+	private boolean closed;
+
 	/**
 	 * 
 	 * @param size
 	 */
 	public ThreadPool(TaskManager manager, int size) {
 		this.size = size;
+		this.manager = manager;
 		this.lock = new Object();
 		this.queue = new LinkedList<Processor>();
-		for (int i = 0; i < size; i++) {
-			Processor p = new Processor(manager);
-			queue.add(p);
-			p.start();
+		this.closed = false;
+		for (int i = 0; i < size; i++)
+			queue.add(new Processor(manager));
+	}
+
+	/**
+	 * Start the processors made by the constructor, the ones added by
+	 * {@link #grow(int)} start right away.
+	 */
+	public void start() {
+		synchronized (lock) {
+			for (Processor p : this.queue)
+				p.start();
 		}
 	}
 	
@@ -49,8 +71,72 @@ public final class ThreadPool {
 		}
 	}
 
+	/**
+	 * @return processors belonging to the pool, idle or busy
+	 */
+	public int getSize() {
+		synchronized (lock) {
+			return this.size;
+		}
+	}
+
+	/**
+	 * Start more processors.
+	 * 
+	 * @param count
+	 *            how many to add
+	 */
+	public void grow(int count) {
+		synchronized (lock) {
+			for (int i = 0; i < count; i++) {
+				Processor p = new Processor(this.manager);
+				p.start();
+				if (this.queue.size() == 0)
+					this.lock.notifyAll();
+				this.queue.add(p);
+				this.size++;
+			}
+		}
+	}
+
+	/**
+	 * Retire idle processors, never waiting for a busy one to finish.
+	 * 
+	 * @param count
+	 *            the most to retire
+	 * @return how many were retired
+	 */
+	public int shrink(int count) {
+		synchronized (lock) {
+			int retired = 0;
+			while (retired < count && this.queue.isEmpty() == false && this.size > 1) {
+				this.queue.removeLast().retire();
+				this.size--;
+				retired++;
+			}
+			return retired;
+		}
+	}
+
+	/**
+	 * Retire every processor, the idle ones now and the busy ones as
+	 * soon as they finish their task.
+	 */
+	public void close() {
+		synchronized (lock) {
+			this.closed = true;
+			while (this.queue.isEmpty() == false)
+				this.queue.removeFirst().retire();
+			this.lock.notifyAll();
+		}
+	}
+
 	public void enqueue(Processor item) throws InterruptedException {
 		synchronized (lock) {
+			if (this.closed) {
+				item.retire();
+				return;
+			}
 			while (this.queue.size() == this.size) {
 				this.lock.wait();
 			}
@@ -0,0 +1,91 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on a {@link RingQueue} that is full or empty. The
+ * counter passed to {@link #idle(int)} is the number of times the caller
+ * has already failed, so a strategy can back off.
+ * 
+ * @author G van Andel
+ *
+ */
+
+public enum WaitStrategy {
+
+	/**
+	 * Never gives up the core. Lowest latency, burns a CPU per waiter.
+	 */
+	BUSY_SPIN {
+		public void idle(int counter) {
+			Thread.onSpinWait();
+		}
+	},
+
+	/**
+	 * Spins briefly then yields to other runnable threads.
+	 */
+	YIELD {
+		public void idle(int counter) {
+			if (counter < SPIN_TRIES)
+				Thread.onSpinWait();
+			else
+				Thread.yield();
+		}
+	},
+
+	/**
+	 * Spins, yields, then parks for a short interval. Nearly idle when
+	 * there is no work.
+	 */
+	PARK {
+		public void idle(int counter) {
+			if (counter < SPIN_TRIES)
+				Thread.onSpinWait();
+			else if (counter < SPIN_TRIES + YIELD_TRIES)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(PARK_NANOS);
+		}
+	};
+
+	// CLASS VARIABLES **************************************************
+
+	final private static int SPIN_TRIES = 100;
+
+	final private static int YIELD_TRIES = 100;
+
+	final private static long PARK_NANOS = 50000;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Wait once.
+	 * 
+	 * @param counter
+	 *            how many times the caller has waited so far
+	 */
+	abstract public void idle(int counter);
+
+	/**
+	 * @param name
+	 *            spin, yield or park
+	 * @return the matching strategy
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	public static WaitStrategy parse(String name) {
+		switch (name.toLowerCase()) {
+		case "spin":
+		case "busy-spin":
+			return BUSY_SPIN;
+		case "yield":
+			return YIELD;
+		case "park":
+			return PARK;
+		default:
+			throw new IllegalArgumentException("Unknown wait strategy: " + name);
+		}
+	}
+
+}